@@ -0,0 +1,119 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import simulation.Settings;
+import simulation.hash.Client;
+import simulation.hash.SpatialHash;
+
+/**
+ * Measures how insertion into {@link SpatialHash} scales with the number of
+ * inserting threads, both directly and through the staging buffers.
+ * Usage: {@code java benchmark.InsertContention [clients] [rounds]}
+ */
+public final class InsertContention {
+
+  private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+  private record Point(float x, float y) implements Client {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public float getX() {
+      return x;
+    }
+
+    @Override
+    public float getY() {
+      return y;
+    }
+  }
+
+  private interface Insert {
+    void run(SpatialHash hash, Point p);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Settings.load();
+
+    final int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    final Random random = new Random(1);
+    final Point[] points = new Point[n];
+    for (int i = 0; i < n; i++) {
+      points[i] = new Point(random.nextFloat() * 1920, random.nextFloat() * 1080);
+    }
+
+    System.out.printf("%d clients, best of %d rounds%n", n, rounds);
+    System.out.printf("%8s %16s %16s%n", "threads", "direct (M/s)", "staged (M/s)");
+
+    for (int threads : THREADS) {
+      final double direct = best(points, threads, rounds, SpatialHash::insert);
+      final double staged = best(
+        points,
+        threads,
+        rounds,
+        SpatialHash::stage
+      );
+      System.out.printf("%8d %16.2f %16.2f%n", threads, direct, staged);
+    }
+
+    System.exit(0);
+  }
+
+  /**
+   * @return the best throughput in millions of clients per second
+   */
+  private static double best(
+    Point[] points,
+    int threads,
+    int rounds,
+    Insert insert
+  ) throws InterruptedException {
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final SpatialHash hash = new SpatialHash(SpatialHash.Mode.INCREMENTAL);
+    long best = Long.MAX_VALUE;
+
+    // The first round creates the cells and warms up the JIT, so it is not
+    // counted. Later rounds re-insert into existing cells, like a tick does.
+    for (int r = 0; r <= rounds; r++) {
+      for (Point p : points) hash.remove(p);
+
+      final List<Future<?>> futures = new ArrayList<>();
+      final int chunk = (points.length + threads - 1) / threads;
+
+      final long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        final int from = t * chunk;
+        final int to = Math.min(points.length, from + chunk);
+        futures.add(
+          pool.submit(() -> {
+            for (int i = from; i < to; i++) insert.run(hash, points[i]);
+          })
+        );
+      }
+      for (Future<?> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      hash.flushStaged();
+      final long time = System.nanoTime() - start;
+
+      if (r > 0) best = Math.min(best, time);
+    }
+
+    pool.shutdown();
+    return points.length / (best / 1_000.0);
+  }
+
+  private InsertContention() {}
+}
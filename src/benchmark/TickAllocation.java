@@ -0,0 +1,123 @@
+package benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import simulation.Settings;
+import simulation.Simulation;
+import simulation.body.particle.AttractorParticle;
+import simulation.body.particle.ChargedParticle;
+import simulation.body.particle.CopyParticle;
+import simulation.body.particle.Particle;
+import simulation.body.particle.RepulserParticle;
+import simulation.util.Vec2;
+import simulation.util.constructor.ObjectParams;
+import simulation.util.constructor.ParticleParams;
+
+/**
+ * Checks that a steady-state tick of {@link Simulation#update()} allocates
+ * nothing, on any thread. The scene has every built-in particle type that
+ * lives on after a collision, plus a circle and a rectangle, and particles
+ * live long enough that none are made or removed while measuring. Exits
+ * with status 1 if any measured tick allocated.
+ * Usage: {@code java benchmark.TickAllocation [particles] [ticks]}
+ */
+public final class TickAllocation {
+
+  private static final short WIDTH = 1600;
+  private static final short HEIGHT = 900;
+  // Long enough for every buffer to have grown to the most it needs, which
+  // takes a while as the peaks only come now and then
+  private static final int WARMUP_TICKS = 6_000;
+
+  private static final Class<?>[] TYPES = {
+    Particle.class,
+    AttractorParticle.class,
+    ChargedParticle.class,
+    CopyParticle.class,
+    RepulserParticle.class,
+  };
+
+  public static void main(String[] args) {
+    Settings.load();
+
+    final int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    final int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    final Simulation simulation = new Simulation();
+    simulation.resize(WIDTH, HEIGHT);
+
+    final Random random = new Random(1);
+    final float minMass = Settings.get(Settings.Constants.MIN_MASS);
+    for (int i = 0; i < n; i++) {
+      final ParticleParams params = new ParticleParams(
+        new Vec2(random.nextFloat() * WIDTH, random.nextFloat() * HEIGHT),
+        new Vec2(random.nextFloat() * 20 - 10, random.nextFloat() * 20 - 10),
+        (short) (minMass + random.nextInt(40)),
+        (short) 0,
+        Float.MAX_VALUE
+      );
+      simulation.newParticle(
+        params,
+        TYPES[i % TYPES.length].asSubclass(Particle.class)
+      );
+    }
+    simulation.newObject(
+      new ObjectParams(WIDTH / 3f, HEIGHT / 2f, (short) 80)
+    );
+    simulation.newObject(
+      new ObjectParams(WIDTH * 2 / 3f, HEIGHT / 2f, (short) 120, (short) 60)
+    );
+
+    for (int i = 0; i < WARMUP_TICKS; i++) simulation.update();
+
+    final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long[] ids = threads.getAllThreadIds();
+
+    final long self = Thread.currentThread().getId();
+
+    long total = 0;
+    long worst = 0;
+    for (int i = 0; i < ticks; i++) {
+      // Reading the other threads' counters allocates the result array on
+      // this thread, so this thread's own counter is read in between, where
+      // that array is not counted
+      final long others = allocated(threads, ids, self);
+      final long own = threads.getCurrentThreadAllocatedBytes();
+      simulation.update();
+      final long bytes =
+        threads.getCurrentThreadAllocatedBytes() -
+        own +
+        allocated(threads, ids, self) -
+        others;
+
+      total += bytes;
+      worst = Math.max(worst, bytes);
+    }
+
+    System.out.printf(
+      "%d particles, %d ticks: %.1f bytes/tick on average, %d at worst%n",
+      simulation.getNumParticles(),
+      ticks,
+      total / (double) ticks,
+      worst
+    );
+
+    System.exit(worst > 0 ? 1 : 0);
+  }
+
+  private static long allocated(
+    com.sun.management.ThreadMXBean threads,
+    long[] ids,
+    long skip
+  ) {
+    final long[] bytes = threads.getThreadAllocatedBytes(ids);
+    long sum = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] != skip && bytes[i] > 0) sum += bytes[i];
+    }
+    return sum;
+  }
+
+  private TickAllocation() {}
+}
@@ -17,12 +17,22 @@ public enum Settings {
     MIN_RADIUS,
     MAX_RADIUS,
     CELL_SIZE,
+    HASH_LEVELS,
     MASS_RADIUS_RATIO,
     MIN_MASS,
     MAX_MASS,
     SOFTENING_CONSTANT,
     AIR_CONSTANT,
     INITIAL_PARTICLES,
+    NEIGHBOUR_SKIN,
+    REORDER_INTERVAL,
+    REORDER_THRESHOLD,
+  }
+
+  public enum Options {
+    SPATIAL_INDEX,
+    HASH_MODE,
+    PARTICLE_STORE,
   }
 
   public static final Class<? extends Particle> INITIAL_PARTICLE_TYPE =
@@ -30,20 +40,37 @@ public enum Settings {
 
   private static final Properties props = new Properties();
 
+  // Parsed once, since the physics reads settings in its innermost loops
+  private static final float[] settings = new float[values().length];
+  private static final float[] constants = new float[
+    Constants.values().length
+  ];
+
   public static float get(Settings setting) {
-    return Float.parseFloat(props.getProperty(setting.name()));
+    return settings[setting.ordinal()];
   }
 
   public static float get(Constants constant) {
-    return Float.parseFloat(props.getProperty(constant.name()));
+    return constants[constant.ordinal()];
+  }
+
+  public static <E extends Enum<E>> E get(Options option, Class<E> type) {
+    return Enum.valueOf(type, props.getProperty(option.name()).trim());
   }
 
   public static void put(Settings setting, float value) {
     props.setProperty(setting.name(), Float.toString(value));
+    settings[setting.ordinal()] = value;
   }
 
   private static void put(Constants setting, float value) {
     props.setProperty(setting.name(), Float.toString(value));
+    constants[setting.ordinal()] = value;
+  }
+
+  private static float parse(String name) {
+    final String value = props.getProperty(name);
+    return value == null ? Float.NaN : Float.parseFloat(value);
   }
 
   public static void load() {
@@ -55,6 +82,10 @@ public enum Settings {
       );
 
       props.load(in);
+      for (Settings s : values()) settings[s.ordinal()] = parse(s.name());
+      for (Constants c : Constants.values()) {
+        constants[c.ordinal()] = parse(c.name());
+      }
 
       put(
         Constants.CELL_SIZE,
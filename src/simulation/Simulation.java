@@ -3,53 +3,78 @@ package simulation;
 import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.geom.RectangularShape;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import simulation.Settings.Constants;
+import simulation.Settings.Options;
 import simulation.body.object.*;
 import simulation.body.particle.*;
+import simulation.hash.AABBTree;
+import simulation.hash.BatchConsumer;
+import simulation.hash.BatchQuery;
 import simulation.hash.Client;
+import simulation.hash.LooseQuadtree;
+import simulation.hash.NeighbourList;
+import simulation.hash.PairConsumer;
+import simulation.hash.SegmentHits;
 import simulation.hash.SpatialHash;
+import simulation.hash.SpatialIndex;
 import simulation.util.MathUtils;
+import simulation.util.MortonOrder;
 import simulation.util.Vec2;
+import simulation.util.Workers;
 import simulation.util.constructor.*;
 
 public class Simulation implements Serializable {
 
-  private class Flag {
-
-    private boolean value = false;
-
-    public boolean isTrue() {
-      return value;
-    }
-
-    public void setValue(boolean value) {
-      this.value = value;
-    }
-  }
-
-  private final record Grab(Particle particle, float xOffset, float yOffset) {}
-
   private static final long serialVersionUID = 148627507412075L;
 
-  private final SpatialHash hash = new SpatialHash();
-  private final Set<Particle> particles = ConcurrentHashMap.newKeySet();
-  private final Set<Environment> objects = ConcurrentHashMap.newKeySet();
-  private final Set<Grab> grabbed = new HashSet<>();
-  private final transient ExecutorService pool = Executors.newFixedThreadPool(
-    8
+  private static final int THREADS = 8;
+  private static final int INTEGRATE_CHUNK = 1 << 11;
+  private static final int PARTICLE_CHUNK = 1 << 6;
+
+  private final SpatialIndex index = newIndex();
+  private final transient BatchQuery batch = new BatchQuery(
+    index,
+    Settings.get(Constants.CELL_SIZE)
+  );
+  private final transient NeighbourList neighbours =
+    Settings.get(Constants.NEIGHBOUR_SKIN) > 0
+      ? new NeighbourList(index, Settings.get(Constants.NEIGHBOUR_SKIN))
+      : null;
+  private final ParticleStore store = newStore();
+  private final transient ParticlePool pool = new ParticlePool(store);
+  private final ParticleList particles = new ParticleList();
+  // Particles found dead by the workers, claimed a place at a time so a
+  // death allocates nothing
+  private transient Particle[] expired = new Particle[0];
+  private final transient AtomicInteger expiredCount = new AtomicInteger();
+  private final transient MortonOrder<Particle> order = new MortonOrder<>(
+    Settings.get(Constants.CELL_SIZE),
+    (int) Settings.get(Constants.REORDER_INTERVAL),
+    Settings.get(Constants.REORDER_THRESHOLD)
+  );
+  // There are only ever a few objects, and going through a copy-on-write set
+  // does not allocate the way a concurrent hash set does every tick
+  private final Set<Environment> objects = new CopyOnWriteArraySet<>();
+  private final transient AABBTree<Environment> objectTree = new AABBTree<>();
+  private final Queue<Environment> newObjects = new ConcurrentLinkedQueue<>();
+  // Handles of the grabbed particles, and the offset of each from the grab
+  private long[] grabbed = new long[16];
+  private float[] grabOffsets = new float[32];
+  private int grabCount;
+  private final transient SegmentHits hits = new SegmentHits();
+  private final transient Workers workers = new Workers(
+    THREADS - 1,
+    "simulation"
   );
-  private final List<Future<?>> futures = new ArrayList<>();
 
   private short width;
   private short height;
@@ -57,6 +82,57 @@ public class Simulation implements Serializable {
   private Vec2 preGrabPos;
   private Vec2 grabPos;
 
+  // Scratch for splitting, which only runs between phases
+  private transient short[] splitMasses = new short[64];
+  private transient int splitTop;
+  private final transient Vec2 splitVelocity = new Vec2(0, 0);
+
+  // The work of each phase is made once, so a tick allocates nothing
+  private final transient Workers.Range integrate = (from, to) ->
+    store.integrate(from, to, width, height);
+  private final transient Workers.Range move = (from, to) -> {
+    for (int i = from; i < to; i++) {
+      final Particle p = order.get(i);
+      if (!calculations(p)) index.update(p);
+    }
+  };
+  private final transient Workers.Range affect = (from, to) -> {
+    for (int i = from; i < to; i++) {
+      final Particle p = order.get(i);
+      neighbours.forEachNear(p, p.getNearRadius(), p);
+      affectObjects(p);
+    }
+  };
+  private final transient BatchConsumer<Particle> nearEffects =
+    this::affectNear;
+  private final transient PairConsumer collisions = this::collide;
+  private final transient Consumer<Environment> envCalculations =
+    this::envCalculations;
+
+  private static SpatialIndex newIndex() {
+    final SpatialIndex.Type type = Settings.get(
+      Options.SPATIAL_INDEX,
+      SpatialIndex.Type.class
+    );
+    return switch (type) {
+      case QUADTREE -> new LooseQuadtree();
+      case HASH -> new SpatialHash(
+        Settings.get(Options.HASH_MODE, SpatialHash.Mode.class)
+      );
+    };
+  }
+
+  private static ParticleStore newStore() {
+    final ParticleStore.Memory memory = Settings.get(
+      Options.PARTICLE_STORE,
+      ParticleStore.Memory.class
+    );
+    return switch (memory) {
+      case HEAP -> new HeapParticleStore();
+      case DIRECT -> new DirectParticleStore();
+    };
+  }
+
   public void start() {
     for (short i = 0; i < Settings.get(Constants.INITIAL_PARTICLES); i++) {
       newParticle(
@@ -69,9 +145,16 @@ public class Simulation implements Serializable {
     }
   }
 
+  /**
+   * Sets the size of the world. Rebuilds the spatial index, so must be called
+   * between ticks, from the thread that calls {@link #update()}.
+   * @param width the new width
+   * @param height the new height
+   */
   public void resize(short width, short height) {
     this.width = width;
     this.height = height;
+    index.resize(width, height);
   }
 
   public int getNumParticles() {
@@ -82,14 +165,34 @@ public class Simulation implements Serializable {
     return objects.size();
   }
 
+  /**
+   * @return the current cell size of the lowest hash level, or {@code -1} if
+   * the spatial index is not a hash
+   */
+  public float getCellSize() {
+    return index instanceof SpatialHash h ? h.getCellSize() : -1;
+  }
+
+  /**
+   * @return the number of neighbour list rebuilds, or {@code -1} if neighbour
+   * lists are disabled
+   */
+  public long getNeighbourRebuilds() {
+    return neighbours == null ? -1 : neighbours.getRebuilds();
+  }
+
   public Particle newParticle(
     ParticleParams p,
     Class<? extends Particle> type
   ) {
-    Particle newP = ClassConstructor.build(p, type);
-    hash.newClient(newP);
-    particles.add(newP);
-    return newP;
+    return add(pool.obtain(type, p));
+  }
+
+  private Particle add(Particle p) {
+    index.insert(p);
+    particles.add(p);
+    order.add(p);
+    return p;
   }
 
   public Particle newParticle(
@@ -102,16 +205,18 @@ public class Simulation implements Serializable {
 
   public Environment newObject(ObjectParams params) {
     Environment newO = ClassConstructor.build(params);
-    hash.newClient(newO);
     objects.add(newO);
+    newObjects.add(newO);
     return newO;
   }
 
   public Environment deleteObject(float x, float y) {
-    for (Environment o : objects) {
-      if (o.getBounds().contains(x, y)) return deleteObject(o);
-    }
-    return null;
+    final Environment o = objectTree.findAt(
+      x,
+      y,
+      e -> e.getBounds().contains(x, y)
+    );
+    return o == null ? null : deleteObject(o);
   }
 
   public Environment deleteObject(Vec2 position) {
@@ -119,40 +224,74 @@ public class Simulation implements Serializable {
   }
 
   public Environment deleteObject(Environment o) {
-    hash.removeClient(o);
     objects.remove(o);
+    objectTree.remove(o);
     return o;
   }
 
+  /**
+   * Adds the objects made since the last call to the object tree. Objects can
+   * be made by the workers, so the tree is only changed between phases.
+   */
+  private void flushObjects() {
+    Environment o;
+    while ((o = newObjects.poll()) != null) {
+      if (!objects.contains(o)) continue;
+
+      final RectangularShape b = o.getBounds();
+      objectTree.insert(
+        o,
+        (float) b.getMinX(),
+        (float) b.getMinY(),
+        (float) b.getMaxX(),
+        (float) b.getMaxY()
+      );
+    }
+  }
+
   public void update() {
-    futures.clear();
-
-    particles.forEach(p ->
-      futures.add(
-        pool.submit(() -> {
-          if (calculations(p)) return;
-          p.affectNear(findNearParticles(p, p.getNearRadius()));
-          if (collisionCheck(p)) return;
-        })
-      )
-    );
-    futures.forEach(this::block);
+    // Take in the particles made since the last tick
+    particles.commit(workers);
+    order.refresh(particles, true);
+    // Nothing refers to the particles deleted last tick any more
+    pool.flush();
+
+    workers.forEach(store.end(), INTEGRATE_CHUNK, integrate);
+    if (expired.length < order.size()) expired = new Particle[order.size()];
+    workers.forEach(order.size(), PARTICLE_CHUNK, move);
+
+    // Splitting adds particles to the store, so it waits until no worker is
+    // reading it
+    final int deaths = expiredCount.getAndSet(0);
+    for (int i = 0; i < deaths; i++) {
+      expire(expired[i]);
+      expired[i] = null;
+    }
+    // The rest of the tick sees only what is left after splitting
+    particles.commit(workers);
+    index.flushStaged();
 
-    objects.forEach(this::envCalculations);
+    index.rebuild(particles);
 
-    updateGrab();
-  }
+    final float cutoff = Settings.get(Constants.MAX_RADIUS) * 2;
+    if (neighbours != null) neighbours.refresh(particles, cutoff);
 
-  private void block(Future<?> f) {
-    try {
-      f.get();
-    } catch (InterruptedException e) {
-      System.err.println("InterruptedException");
-      Thread.currentThread().interrupt();
-    } catch (ExecutionException e) {
-      System.err.println("ExecutionException");
-      e.printStackTrace();
-    }
+    order.refresh(particles, false);
+    flushObjects();
+
+    if (neighbours != null) {
+      workers.forEach(order.size(), PARTICLE_CHUNK, affect);
+    } else batch.forEachNear(particles, Particle::getNearRadius, nearEffects);
+
+    if (neighbours != null) {
+      neighbours.forEachPair(collisions);
+    } else index.forEachPair(cutoff, collisions);
+
+    objects.forEach(envCalculations);
+
+    updateGrab();
+    // Drop the particles deleted by collisions before they are drawn
+    particles.commit(workers);
   }
 
   public void draw(Graphics2D g) {
@@ -174,22 +313,40 @@ public class Simulation implements Serializable {
   public void grab(Vec2 position) {
     preGrabPos = new Vec2(position);
     grabPos = new Vec2(position);
-    particles.forEach(p -> {
-      if (p.getBounds().contains(grabPos.x(), grabPos.y())) {
-        grabbed.add(
-          new Grab(p, grabPos.x() - p.getX(), grabPos.y() - p.getY())
-        );
-        p.grab();
+
+    // Collisions can push particles a little way from where the index last
+    // saw them, so search further than the largest radius
+    final float x = grabPos.x();
+    final float y = grabPos.y();
+    final short radius = (short) (Settings.get(Constants.MAX_RADIUS) * 2);
+    index.traceSegment(x, y, x, y, radius, hits);
+
+    for (int i = 0; i < hits.size(); i++) {
+      if (
+        !(hits.get(i) instanceof Particle p) || !p.getBounds().contains(x, y)
+      ) continue;
+
+      if (grabCount == grabbed.length) {
+        grabbed = Arrays.copyOf(grabbed, grabCount * 2);
+        grabOffsets = Arrays.copyOf(grabOffsets, grabCount * 4);
       }
-    });
+      grabbed[grabCount] = p.handle();
+      grabOffsets[grabCount * 2] = x - p.getX();
+      grabOffsets[grabCount * 2 + 1] = y - p.getY();
+      grabCount++;
+      p.grab();
+    }
   }
 
   public void moveGrab(Vec2 position) {
-    if (grabbed.isEmpty()) return;
+    if (grabCount == 0) return;
 
     preGrabPos.set(grabPos);
     grabPos.set(position).sub(preGrabPos);
-    grabbed.forEach(g -> g.particle.getVelocity().add(grabPos));
+    for (int i = 0; i < grabCount; i++) {
+      final Particle p = store.resolve(grabbed[i]);
+      if (p != null) p.addVelocity(grabPos);
+    }
     grabPos.set(position);
   }
 
@@ -197,32 +354,45 @@ public class Simulation implements Serializable {
     preGrabPos = null;
     grabPos = null;
 
-    if (grabbed.isEmpty()) return;
-
-    grabbed.forEach(g -> g.particle.release());
-    grabbed.clear();
+    for (int i = 0; i < grabCount; i++) {
+      final Particle p = store.resolve(grabbed[i]);
+      if (p != null) p.release();
+    }
+    grabCount = 0;
   }
 
   private void envCalculations(Environment o) {
-    o.update(findNearParticles(o.getCenter(), o.getNearRadius()));
+    o.update();
 
     if (o instanceof Splat && ((Splat) o).isDead()) deleteObject(o);
     // TODO: splat particles on collision with objects
   }
 
   /**
-   * @param p the particle to do calculations for
-   * @return {@code true} if the particle is deleted, {@code false} otherwise
+   * @param p the particle to do calculations for, after the store has
+   * integrated it
+   * @return {@code true} if the particle is to be deleted or split,
+   * {@code false} otherwise
    */
   private boolean calculations(Particle p) {
-    hash.removeClient(p);
+    p.updateState();
 
-    boolean delete = false;
-    boolean split = false;
+    if (
+      (p instanceof SplatParticle s && s.hasSplatted()) || p.isDead()
+    ) {
+      expired[expiredCount.getAndIncrement()] = p;
+      return true;
+    }
+    return false;
+  }
 
-    if (p.getClass() == SplatParticle.class) {
-      if (((SplatParticle) p).updateSplat(width, height)) delete = true;
-    } else p.update(width, height);
+  /**
+   * Deletes or splits a particle found by {@link #calculations(Particle)}
+   * @param p the particle
+   */
+  private void expire(Particle p) {
+    boolean delete = p instanceof SplatParticle s && s.hasSplatted();
+    boolean split = false;
 
     if (p.isDead()) {
       if (p.getMass() > Settings.get(Constants.MIN_MASS) * 2) {
@@ -231,65 +401,54 @@ public class Simulation implements Serializable {
     }
 
     if (delete) deleteParticle(p); else if (split) splitParticle(p);
-    return delete || split;
   }
 
-  /**
-   * @param p the particle to check collisions for
-   * @return {@code true} if the particle is deleted, {@code false} otherwise
-   */
-  private boolean collisionCheck(Particle p) {
-    if (!p.collisionEnabled()) return false;
-
-    final Flag delete = new Flag();
-
-    findNearParticles(
-      p,
-      (short) (p.getRadius() + Settings.get(Constants.MAX_RADIUS))
-    )
-      .filter(Particle::collisionEnabled)
-      .forEach(p2 -> {
-        if (p.detectCollision(p2) && p instanceof SplatParticle) {
-          delete.setValue(true);
-        }
-      });
-
-    if (delete.isTrue()) deleteParticle(p); else hash.newClient(p);
-    return delete.isTrue();
+  private void collide(Client a, Client b) {
+    if (!(a instanceof Particle) || !(b instanceof Particle)) return;
+
+    final Particle p1 = (Particle) a;
+    final Particle p2 = (Particle) b;
+    if (!p1.collisionEnabled() || !p2.collisionEnabled()) return;
+
+    // Resolve each contact once, from the other side only if the first missed,
+    // but let both particles react to it
+    if (!p1.detectCollision(p2) && !p2.detectCollision(p1)) return;
+
+    if (p1.react(p2)) deleteParticle(p1);
+    if (p2.react(p1)) deleteParticle(p2);
   }
 
   private void splitParticle(Particle p) {
-    ParticleParams params = new ParticleParams(
-      p.getPosition(),
-      p.getVelocity(),
+    splitParticle(
+      p.getClass(),
+      p.getX(),
+      p.getY(),
+      p.getVelocityX(),
+      p.getVelocityY(),
       p.getMass(),
-      p.getImmortality(),
       p.getLifespan()
     );
-    if (p instanceof AttractorParticle) {
-      params = params.withStrength(((AttractorParticle) p).getStrength());
-    } else if (p instanceof RepulserParticle) {
-      params = params.withStrength(((RepulserParticle) p).getStrength());
-    } else if (p instanceof ChargedParticle) {
-      params =
-        params
-          .withStrength(((ChargedParticle) p).getStrength())
-          .withCharge(((ChargedParticle) p).getCharge());
-    }
-
-    splitParticle(params, p.getClass());
     deleteParticle(p);
   }
 
-  private void splitParticle(ParticleParams p, Class<? extends Particle> type) {
+  private void splitParticle(
+    Class<? extends Particle> type,
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    float life
+  ) {
     final float LOSS = 0.95f;
     final float THRESHOLD = (float) (
-      (p.mass() / Settings.get(Constants.MASS_RADIUS_RATIO)) * 0.75
+      (mass / Settings.get(Constants.MASS_RADIUS_RATIO)) * 0.75
     );
 
-    final ArrayList<Short> masses = new ArrayList<>();
-
-    float r = p.mass() * LOSS;
+    // The parts are pushed above the parts of the splits this one is inside
+    // of, each at a random position among its own
+    final int start = splitTop;
+    float r = mass * LOSS;
 
     while (r > 0) {
       if (r < Settings.get(Constants.MIN_MASS)) break;
@@ -297,19 +456,20 @@ public class Simulation implements Serializable {
       short s = (short) Math.floor(
         MathUtils.randRange(r, Settings.get(Constants.MIN_MASS))
       );
-      masses.add(MathUtils.randInt(masses.size()), s);
+      if (splitTop == splitMasses.length) {
+        splitMasses = Arrays.copyOf(splitMasses, splitTop * 2);
+      }
+      final int at = start + MathUtils.randInt(splitTop - start);
+      splitMasses[splitTop++] = splitMasses[at];
+      splitMasses[at] = s;
       r -= s;
     }
 
-    final int parts = masses.size();
-    final float initialLife = (p.initialLife() * LOSS) / parts;
-
-    final float x = p.position().x();
-    final float y = p.position().y();
+    final int parts = splitTop - start;
+    final float initialLife = (life * LOSS) / parts;
 
-    final Vec2 velocity = p.velocity().mul(LOSS);
-
-    masses.forEach(mass -> {
+    for (int i = start; i < start + parts; i++) {
+      final short partMass = splitMasses[i];
       float angle = 0;
 
       if (parts > 1) {
@@ -321,26 +481,42 @@ public class Simulation implements Serializable {
           );
       }
 
-      ParticleParams newP = new ParticleParams(
-        new Vec2(
-          x + MathUtils.randRange(parts, -parts),
-          y + MathUtils.randRange(parts, -parts)
-        ),
-        new Vec2(velocity).rotate(angle),
-        mass,
-        (short) MathUtils.randRange(150, 30),
-        initialLife
+      final float px = x + MathUtils.randRange(parts, -parts);
+      final float py = y + MathUtils.randRange(parts, -parts);
+      splitVelocity.set(vx, vy).mul(LOSS).rotate(angle);
+      final short immortality = (short) MathUtils.randRange(150, 30);
+
+      if (partMass / Settings.get(Constants.MASS_RADIUS_RATIO) > THRESHOLD) {
+        splitParticle(
+          type,
+          px,
+          py,
+          splitVelocity.x(),
+          splitVelocity.y(),
+          partMass,
+          initialLife
+        );
+      } else add(
+        pool.obtain(
+          type,
+          px,
+          py,
+          splitVelocity.x(),
+          splitVelocity.y(),
+          partMass,
+          immortality,
+          initialLife
+        )
       );
+    }
 
-      if (mass / Settings.get(Constants.MASS_RADIUS_RATIO) > THRESHOLD) {
-        splitParticle(newP, type);
-      } else newParticle(newP, type);
-    });
+    splitTop = start;
   }
 
   private Particle deleteParticle(Particle p) {
-    hash.removeClient(p);
-    particles.remove(p);
+    index.remove(p);
+    if (neighbours != null) neighbours.removeClient(p);
+    if (!particles.remove(p)) return p;
 
     if (p.getClass() == SplatParticle.class) {
       newObject(
@@ -352,29 +528,36 @@ public class Simulation implements Serializable {
       );
     }
 
+    pool.recycle(p);
     return p;
   }
 
-  private Stream<Particle> findNearParticles(Client c, short radius) {
-    return findNearParticles(new Vec2(c.getX(), c.getY()), radius);
+  private void affectNear(Particle p, Client[] near, int count) {
+    for (int i = 0; i < count; i++) p.accept(near[i]);
+    affectObjects(p);
   }
 
-  private Stream<Particle> findNearParticles(Vec2 c, short radius) {
-    return hash
-      .findNear(c, radius)
-      .stream()
-      .filter(Particle.class::isInstance)
-      .map(c2 -> (Particle) c2);
+  private void affectObjects(Particle p) {
+    objectTree.forEachInCircle(
+      p.getX(),
+      p.getY(),
+      p.getRadius(),
+      Environment::accept,
+      p
+    );
   }
 
   private void updateGrab() {
-    if (grabbed.isEmpty()) return;
-
-    grabbed.forEach(g -> {
-      g.particle
-        .getPosition()
-        .set(grabPos.x() - g.xOffset, grabPos.y() - g.yOffset);
-      g.particle.getVelocity().pow(0.95f);
-    });
+    // A grabbed particle that has been deleted no longer resolves
+    for (int i = 0; i < grabCount; i++) {
+      final Particle p = store.resolve(grabbed[i]);
+      if (p == null) continue;
+
+      p.setPosition(
+        grabPos.x() - grabOffsets[i * 2],
+        grabPos.y() - grabOffsets[i * 2 + 1]
+      );
+      p.powVelocity(0.95f);
+    }
   }
 }
@@ -2,10 +2,8 @@ package simulation.body.object;
 
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.RectangularShape;
-import java.util.stream.Stream;
 import simulation.Settings;
 import simulation.body.particle.Particle;
-import simulation.util.Vec2;
 import simulation.util.constructor.ObjectParams;
 
 public class Circle extends Environment implements Solid {
@@ -37,42 +35,37 @@ public class Circle extends Environment implements Solid {
   }
 
   @Override
-  public short getNearRadius() {
-    return (short) (radius + Settings.get(Settings.Constants.MAX_RADIUS));
-  }
-
-  @Override
-  public void update(Stream<Particle> nearParticles) {
-    nearParticles.forEach(this::detectCollision);
+  protected void affect(Particle p) {
+    detectCollision(p);
   }
 
   @Override
   public void detectCollision(Particle p) {
     if (!p.collisionEnabled()) return;
 
-    final Vec2 pPos = p.getPosition();
-    final Vec2 dv = new Vec2(position).sub(pPos);
+    final float dx = position.x() - p.getX();
+    final float dy = position.y() - p.getY();
     final int r = radius + p.getRadius();
+    final float length = (float) Math.sqrt(dx * dx + dy * dy);
 
-    if (dv.getLength() > r) return;
+    if (length > r) return;
 
-    final double angle = Math.atan2(-dv.y(), -dv.x());
-    final Vec2 distance = new Vec2(
-      (float) Math.cos(angle),
-      (float) Math.sin(angle)
-    )
-      .mul(r);
-    pPos.set(position.x() + distance.x(), position.y() + distance.y());
+    final double angle = Math.atan2(-dy, -dx);
+    final float ox = (float) Math.cos(angle) * r;
+    final float oy = (float) Math.sin(angle) * r;
+    p.setPosition(position.x() + ox, position.y() + oy);
 
-    final Vec2 pVelocity = p.getVelocity();
-    pVelocity.add(distance.add(dv));
+    final float vx = p.getVelocityX() + (ox + dx);
+    final float vy = p.getVelocityY() + (oy + dy);
+    p.setVelocity(vx, vy);
 
-    final float speed =
-      pVelocity.dot(dv.normalise()) * Settings.get(Settings.COR);
+    final float nx = length > 0 ? dx / length : 0;
+    final float ny = length > 0 ? dy / length : 0;
+    final float speed = (vx * nx + vy * ny) * Settings.get(Settings.COR);
 
     if (speed <= 0) return;
 
-    pVelocity.sub(dv.mul(speed * 2));
+    p.setVelocity(vx - nx * (speed * 2), vy - ny * (speed * 2));
   }
 
   @Override
@@ -4,12 +4,12 @@ import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.RectangularShape;
-import java.util.stream.Stream;
 import simulation.body.particle.Particle;
 import simulation.hash.Client;
+import simulation.hash.ClientConsumer;
 import simulation.util.Vec2;
 
-public abstract class Environment implements Client {
+public abstract class Environment implements Client, ClientConsumer {
 
   public static final Color COLOUR = Color.LIGHT_GRAY;
 
@@ -32,9 +32,28 @@ public abstract class Environment implements Client {
     return center;
   }
 
-  public abstract short getNearRadius();
+  /**
+   * Applies this object's effect to a client found near it
+   * @param client the nearby client
+   */
+  @Override
+  public void accept(Client client) {
+    if (client instanceof Particle) affect((Particle) client);
+  }
 
-  public abstract void update(Stream<Particle> nearParticles);
+  /**
+   * Called from the worker threads, so it may run for several particles at
+   * once
+   * @param p the nearby particle to apply the effect to
+   */
+  protected abstract void affect(Particle p);
+
+  /**
+   * Called once per tick after every nearby particle has been affected
+   */
+  public void update() {
+    // Used in subclasses
+  }
 
   public void draw(Graphics2D g) {
     g.setComposite(AlphaComposite.SrcOver);
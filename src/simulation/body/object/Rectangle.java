@@ -2,7 +2,6 @@ package simulation.body.object;
 
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RectangularShape;
-import java.util.stream.Stream;
 import simulation.Settings;
 import simulation.body.particle.Particle;
 import simulation.util.constructor.ObjectParams;
@@ -23,16 +22,8 @@ public class Rectangle extends Environment implements Solid {
   }
 
   @Override
-  public short getNearRadius() {
-    return (short) Math.ceil(
-      Math.sqrt((width * width / 4f) + (height * height / 4f)) +
-      Settings.get(Settings.Constants.MAX_RADIUS)
-    );
-  }
-
-  @Override
-  public void update(Stream<Particle> nearParticles) {
-    nearParticles.forEach(this::detectCollision);
+  protected void affect(Particle p) {
+    detectCollision(p);
   }
 
   @Override
@@ -62,22 +53,22 @@ public class Rectangle extends Environment implements Solid {
       if (cw > ch) {
         if (cw > -ch) {
           // Bottom
-          p.getPosition().setY(p.getRadius() + position.y() + height);
-          p.getVelocity().setY(Math.abs(p.getVelocity().y()) * cor);
+          p.setPosition(p.getX(), p.getRadius() + position.y() + height);
+          p.setVelocity(p.getVelocityX(), Math.abs(p.getVelocityY()) * cor);
         } else {
           // Left
-          p.getPosition().setX(position.x() - p.getRadius());
-          p.getVelocity().setX(-Math.abs(p.getVelocity().y()) * cor);
+          p.setPosition(position.x() - p.getRadius(), p.getY());
+          p.setVelocity(-Math.abs(p.getVelocityY()) * cor, p.getVelocityY());
         }
       } else {
         if (cw > -ch) {
           // Right
-          p.getPosition().setX(p.getRadius() + position.x() + width);
-          p.getVelocity().setX(Math.abs(p.getVelocity().y()) * cor);
+          p.setPosition(p.getRadius() + position.x() + width, p.getY());
+          p.setVelocity(Math.abs(p.getVelocityY()) * cor, p.getVelocityY());
         } else {
           // Top
-          p.getPosition().setY(position.y() - p.getRadius());
-          p.getVelocity().setY(-Math.abs(p.getVelocity().y()) * cor);
+          p.setPosition(p.getX(), position.y() - p.getRadius());
+          p.setVelocity(p.getVelocityX(), -Math.abs(p.getVelocityY()) * cor);
         }
       }
     }
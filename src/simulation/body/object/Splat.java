@@ -8,14 +8,15 @@ import java.awt.geom.RectangularShape;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Stream;
 import javax.imageio.ImageIO;
 import scalr.Scalr;
 import simulation.Settings;
 import simulation.body.particle.Particle;
+import simulation.body.particle.ParticleStore;
 import simulation.util.MathUtils;
 import simulation.util.constructor.ObjectParams;
 
@@ -24,11 +25,21 @@ public class Splat extends Environment {
   protected final float initRadius;
   protected float radius;
   protected final float drainRate;
-  protected final HashSet<Affected> affected = new HashSet<>();
-  private final HashSet<Affected> remove = new HashSet<>();
+  protected final Set<Affected> affected = ConcurrentHashMap.newKeySet();
+  // The same entries as affected, in an array so ticking them does not
+  // allocate, and the entries that have run out, kept to be used again.
+  // Both are guarded by spare.
+  private Affected[] ticking = new Affected[16];
+  private int tickingCount;
+  private final ArrayDeque<Affected> spare = new ArrayDeque<>();
 
   protected final Ellipse2D.Float bounds;
   protected transient BufferedImage image;
+  private int imageSize;
+  // The image left on the trail of an affected particle, which is only
+  // resized when the rounded radius changes
+  private transient BufferedImage trailImage;
+  private int trailSize = -1;
 
   public Splat(ObjectParams params) {
     super(params.position(), 0, 0);
@@ -46,6 +57,7 @@ public class Splat extends Environment {
 
     resizeImage(getImage());
     colourImage(params.colour());
+    resizeTrail();
   }
 
   @Override
@@ -64,33 +76,52 @@ public class Splat extends Environment {
   }
 
   @Override
-  public short getNearRadius() {
-    return (short) Math.round(radius);
-  }
+  protected void affect(Particle p) {
+    final float dx = p.getX() - getX();
+    final float dy = p.getY() - getY();
+    final float r = radius + p.getRadius();
+    if (dx * dx + dy * dy > r * r) return;
 
-  @Override
-  public void update(Stream<Particle> nearParticles) {
     final float pow =
       1 - radius / (Settings.get(Settings.Constants.MAX_RADIUS) * 500);
-    nearParticles.forEach(p ->
-      affected.add(
-        new Affected(
-          Scalr.resize(image, Math.max(0, Math.round(radius))),
-          p,
-          pow
-        )
-      )
-    );
+    final Affected a;
+    synchronized (spare) {
+      a = spare.isEmpty() ? new Affected() : spare.poll();
+    }
+    a.reset(trailImage, p, pow);
+    final boolean added = affected.add(a);
 
-    affected.forEach(a -> {
-      if (a.tick()) remove.add(a);
-    });
-    remove.forEach(affected::remove);
-    remove.clear();
+    synchronized (spare) {
+      if (!added) spare.add(a); else {
+        if (tickingCount == ticking.length) {
+          ticking = Arrays.copyOf(ticking, tickingCount * 2);
+        }
+        ticking[tickingCount++] = a;
+      }
+    }
+  }
+
+  @Override
+  public void update() {
+    synchronized (spare) {
+      for (int i = 0; i < tickingCount;) {
+        final Affected a = ticking[i];
+        if (!a.tick()) {
+          i++;
+          continue;
+        }
+
+        affected.remove(a);
+        spare.add(a);
+        ticking[i] = ticking[--tickingCount];
+        ticking[tickingCount] = null;
+      }
+    }
 
     if (radius > 0) {
       radius -= drainRate;
       resizeImage(image);
+      resizeTrail();
     }
   }
 
@@ -111,7 +142,19 @@ public class Splat extends Environment {
   }
 
   private void resizeImage(BufferedImage image) {
-    this.image = Scalr.resize(image, Math.max(0, Math.round(radius * 2)));
+    final int size = Math.max(0, Math.round(radius * 2));
+    if (size == imageSize && this.image != null) return;
+
+    this.image = Scalr.resize(image, size);
+    imageSize = size;
+  }
+
+  private void resizeTrail() {
+    final int size = Math.max(0, Math.round(radius));
+    if (size == trailSize) return;
+
+    trailImage = Scalr.resize(image, size);
+    trailSize = size;
   }
 
   private void colourImage(Color colour) {
@@ -147,76 +190,79 @@ public class Splat extends Environment {
 
 final class Affected {
 
-  private final BufferedImage image;
-  private final float slowEffect;
-  private final Particle particle;
+  private BufferedImage image;
+  private float slowEffect;
+  private ParticleStore store;
+  private long particle;
   private float time;
 
-  private class Position {
-
-    private final int x;
-    private final int y;
-    private final float initTime;
-
-    public Position(int x, int y, float initTime) {
-      this.x = x;
-      this.y = y;
-      this.initTime = initTime;
-    }
-
-    public float alpha() {
-      final float alpha = 1 - (initTime - time) / initTime;
-      if (alpha > 0) return alpha;
-      trail.remove(this);
-      return 0;
-    }
-
-    public int x() {
-      return x;
-    }
-
-    public int y() {
-      return y;
-    }
-  }
-
-  private final Set<Position> trail = ConcurrentHashMap.newKeySet();
-
-  public Affected(BufferedImage image, Particle particle, float slowEffect) {
+  // The trail left by the particle, kept between uses. An entry fades from
+  // the time it was left at down to zero.
+  private int[] trailX = new int[16];
+  private int[] trailY = new int[16];
+  private float[] trailTime = new float[16];
+  private int trailLength;
+
+  /**
+   * Starts affecting a particle, forgetting the one before
+   * @param image the image to leave on the trail
+   * @param particle the particle
+   * @param slowEffect the power the velocity of the particle is raised to
+   */
+  void reset(BufferedImage image, Particle particle, float slowEffect) {
     this.image = image;
-    this.particle = particle;
+    store = particle.getStore();
+    this.particle = particle.handle();
     this.slowEffect = slowEffect;
     time = slowEffect * 100;
+    synchronized (this) {
+      trailLength = 0;
+    }
   }
 
-  public void draw(Graphics2D g) {
-    trail.forEach(t -> {
-      g.setComposite(AlphaComposite.SrcOver.derive(t.alpha()));
-      g.drawImage(image, t.x(), t.y(), null);
-    });
+  public synchronized void draw(Graphics2D g) {
+    for (int i = 0; i < trailLength; i++) {
+      final float alpha = 1 - (trailTime[i] - time) / trailTime[i];
+      if (alpha <= 0) continue;
+
+      g.setComposite(AlphaComposite.SrcOver.derive(alpha));
+      g.drawImage(image, trailX[i], trailY[i], null);
+    }
   }
 
   public boolean tick() {
-    particle.getVelocity().pow(slowEffect);
-    trail.add(new Position(getX(), getY(), time));
+    // The trail fades out as usual if the particle has been deleted
+    final Particle p = store.resolve(particle);
+    if (p != null) {
+      p.powVelocity(slowEffect);
+      leave(getX(p), getY(p));
+    }
     time -= Settings.get(Settings.DT) * 10;
     return time <= 0;
   }
 
-  private int getX() {
-    return Math.round(particle.getX() - image.getWidth() / 2f);
+  private synchronized void leave(int x, int y) {
+    if (trailLength == trailX.length) {
+      trailX = Arrays.copyOf(trailX, trailLength * 2);
+      trailY = Arrays.copyOf(trailY, trailLength * 2);
+      trailTime = Arrays.copyOf(trailTime, trailLength * 2);
+    }
+    trailX[trailLength] = x;
+    trailY[trailLength] = y;
+    trailTime[trailLength++] = time;
+  }
+
+  private int getX(Particle p) {
+    return Math.round(p.getX() - image.getWidth() / 2f);
   }
 
-  private int getY() {
-    return Math.round(particle.getY() - image.getHeight() / 2f);
+  private int getY(Particle p) {
+    return Math.round(p.getY() - image.getHeight() / 2f);
   }
 
   @Override
   public int hashCode() {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ((particle == null) ? 0 : particle.hashCode());
-    return result;
+    return Long.hashCode(particle);
   }
 
   @Override
@@ -225,9 +271,6 @@ final class Affected {
     if (obj == null) return false;
     if (getClass() != obj.getClass()) return false;
     Affected other = (Affected) obj;
-    if (particle == null) {
-      if (other.particle != null) return false;
-    } else if (!particle.equals(other.particle)) return false;
-    return true;
+    return particle == other.particle && store == other.store;
   }
 }
@@ -2,7 +2,6 @@ package simulation.body.particle;
 
 import java.awt.Color;
 import java.util.Random;
-import java.util.stream.Stream;
 import simulation.Settings;
 import simulation.util.constructor.ParticleParams;
 import simulation.util.gravity.Gravity;
@@ -34,13 +33,28 @@ public class ChargedParticle extends Particle implements Gravity {
     }
   }
 
-  private final short strength;
-  private final Charge charge;
+  private short strength;
+  private Charge charge;
 
-  public ChargedParticle(ParticleParams p) {
-    super(p);
-    strength = p.strength();
-    charge = p.charge();
+  public ChargedParticle(ParticleStore store, ParticleParams p) {
+    super(store, p);
+  }
+
+  @Override
+  protected void reset(
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife,
+    short strength,
+    Charge charge
+  ) {
+    super.reset(x, y, vx, vy, mass, immortality, initialLife, strength, charge);
+    this.strength = strength;
+    this.charge = charge;
     colour = charge.colour();
   }
 
@@ -64,25 +78,23 @@ public class ChargedParticle extends Particle implements Gravity {
   }
 
   @Override
-  protected void affectNear(Particle p, Stream<Particle> nearParticles) {
+  protected void affect(Particle p, Particle other) {
     if (!(p instanceof Gravity)) return;
-    nearParticles.forEach(p1 -> {
-      if (
-        (
-          p1 instanceof ChargedParticle &&
-          charge == ((ChargedParticle) p1).charge
-        ) ||
-        (p1 instanceof AttractorParticle && charge == Charge.POSITIVE) ||
-        (p1 instanceof RepulserParticle && charge == Charge.NEGATIVE)
-      ) {
-        GravityUtils.repel((Gravity) p, p1);
-      } else if (
-        p1 instanceof ChargedParticle ||
-        p1 instanceof AttractorParticle ||
-        p1 instanceof RepulserParticle
-      ) {
-        GravityUtils.attract((Gravity) p, p1);
-      }
-    });
+    if (
+      (
+        other instanceof ChargedParticle &&
+        charge == ((ChargedParticle) other).charge
+      ) ||
+      (other instanceof AttractorParticle && charge == Charge.POSITIVE) ||
+      (other instanceof RepulserParticle && charge == Charge.NEGATIVE)
+    ) {
+      GravityUtils.repel((Gravity) p, other);
+    } else if (
+      other instanceof ChargedParticle ||
+      other instanceof AttractorParticle ||
+      other instanceof RepulserParticle
+    ) {
+      GravityUtils.attract((Gravity) p, other);
+    }
   }
 }
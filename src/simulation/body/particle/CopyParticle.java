@@ -1,8 +1,7 @@
 package simulation.body.particle;
 
 import java.awt.Color;
-import java.lang.reflect.InvocationTargetException;
-import java.util.stream.Stream;
+import simulation.hash.Client;
 import simulation.util.constructor.ParticleParams;
 import simulation.util.gravity.Gravity;
 
@@ -13,73 +12,99 @@ public class CopyParticle extends Particle implements Gravity {
   protected static final float COLOUR_MIX = 0.6f;
   private static final short COPY_DURATION = 1440;
 
-  protected Particle copied;
+  /**
+   * Handle of the particle being copied, which stops resolving if it is
+   * deleted
+   */
+  protected long copied;
   protected short copyDuration;
 
-  public CopyParticle(ParticleParams p) {
-    super(p);
-    colour = BASE_COLOUR;
+  public CopyParticle(ParticleStore store, ParticleParams p) {
+    super(store, p);
   }
 
   @Override
-  public boolean detectCollision(Particle other) {
-    if (!super.detectCollision(other)) return false;
+  protected void reset(
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife,
+    short strength,
+    ChargedParticle.Charge charge
+  ) {
+    super.reset(x, y, vx, vy, mass, immortality, initialLife, strength, charge);
+    copied = ParticleStore.NO_HANDLE;
+    copyDuration = 0;
+  }
+
+  /**
+   * @return the particle being copied, or {@code null} if there is none
+   */
+  protected Particle getCopied() {
+    return store.resolve(copied);
+  }
 
+  @Override
+  public boolean react(Particle other) {
     if (
       Math.random() <
       COPY_CHANCE *
       ((COPY_DURATION - copyDuration) / (float) COPY_DURATION)
     ) {
       if (!(other instanceof CopyParticle)) {
-        copied = other;
-        colour = mixColour(BASE_COLOUR, other.getColour(), COLOUR_MIX);
-      } else if (((CopyParticle) other).copied != null) {
+        copied = other.handle();
+      } else if (((CopyParticle) other).getCopied() != null) {
         copied = ((CopyParticle) other).copied;
-        colour =
-          mixColour(
-            BASE_COLOUR,
-            ((CopyParticle) other).copied.getColour(),
-            COLOUR_MIX
-          );
-      } else return true;
+      } else return false;
       copyDuration = COPY_DURATION;
     }
 
-    return true;
+    return false;
   }
 
   @Override
   public short getStrength() {
-    try {
-      return (short) copied.getClass().getMethod("getStrength").invoke(copied);
-    } catch (
-      IllegalAccessException
-      | InvocationTargetException
-      | NoSuchMethodException
-      | SecurityException e
-    ) {
-      return 0;
-    }
+    return getCopied() instanceof Gravity g ? g.getStrength() : 0;
+  }
+
+  /**
+   * Mixed from the copied particle's colour when drawn, rather than every
+   * tick, so copying allocates nothing
+   */
+  @Override
+  public Color getColour() {
+    final Particle c = getCopied();
+    if (c == null) return BASE_COLOUR;
+
+    final Color mix = c.getClass() == Particle.class
+      ? getColour(getVelocity())
+      : c.getColour();
+    return mixColour(BASE_COLOUR, mix, COLOUR_MIX);
   }
 
   @Override
   public short getNearRadius() {
-    if (copied == null) return 0;
-    return copied.getNearRadius();
+    final Particle c = getCopied();
+    return c == null ? 0 : c.getNearRadius();
   }
 
   @Override
-  public void affectNear(Stream<Particle> nearParticles) {
-    if (copied == null) return;
+  public void updateState() {
+    if (copied == ParticleStore.NO_HANDLE) return;
 
-    if (copied.getClass() == Particle.class) {
-      colour = mixColour(BASE_COLOUR, getColour(velocity), COLOUR_MIX);
-    } else copied.affectNear(this, nearParticles);
+    if (copyDuration <= 0 || getCopied() == null) {
+      copied = ParticleStore.NO_HANDLE;
+    } else copyDuration -= 1;
+  }
 
-    if (copyDuration > 0) copyDuration -= 1; else {
-      copied = null;
-      colour = BASE_COLOUR;
-    }
+  @Override
+  public void accept(Client client) {
+    final Particle c = getCopied();
+    if (c == null || client == this || !(client instanceof Particle)) return;
+    c.affect(this, (Particle) client);
   }
 
   private Color mixColour(Color a, Color b, float percent) {
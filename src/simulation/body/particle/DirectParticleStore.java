@@ -0,0 +1,267 @@
+package simulation.body.particle;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Particle store that keeps its columns in direct buffers outside the heap.
+ * A large scene then costs the garbage collector nothing to trace or copy,
+ * at the price of slightly slower access than {@link HeapParticleStore}.
+ */
+public final class DirectParticleStore extends ParticleStore {
+
+  private static final long serialVersionUID = 6615390246815874L;
+
+  private transient FloatBuffer x = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer y = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer vx = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer vy = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer lifespan = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer initialLife = floats(INITIAL_CAPACITY);
+  private transient FloatBuffer lifeDrain = floats(INITIAL_CAPACITY);
+  private transient ShortBuffer mass = shorts(INITIAL_CAPACITY);
+  private transient ShortBuffer radius = shorts(INITIAL_CAPACITY);
+  private transient ShortBuffer immortality = shorts(INITIAL_CAPACITY);
+  private transient ByteBuffer intangibility = bytes(INITIAL_CAPACITY);
+  private transient ByteBuffer grabbed = bytes(INITIAL_CAPACITY);
+  private transient ByteBuffer splatted = bytes(INITIAL_CAPACITY);
+  private transient ByteBuffer type = bytes(INITIAL_CAPACITY);
+
+  private static ByteBuffer bytes(int capacity) {
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
+  private static FloatBuffer floats(int capacity) {
+    return bytes(capacity * Float.BYTES).asFloatBuffer();
+  }
+
+  private static ShortBuffer shorts(int capacity) {
+    return bytes(capacity * Short.BYTES).asShortBuffer();
+  }
+
+  @Override
+  protected void grow(int capacity) {
+    final int end = end();
+    x = floats(capacity).put(0, x, 0, end);
+    y = floats(capacity).put(0, y, 0, end);
+    vx = floats(capacity).put(0, vx, 0, end);
+    vy = floats(capacity).put(0, vy, 0, end);
+    lifespan = floats(capacity).put(0, lifespan, 0, end);
+    initialLife = floats(capacity).put(0, initialLife, 0, end);
+    lifeDrain = floats(capacity).put(0, lifeDrain, 0, end);
+    mass = shorts(capacity).put(0, mass, 0, end);
+    radius = shorts(capacity).put(0, radius, 0, end);
+    immortality = shorts(capacity).put(0, immortality, 0, end);
+    intangibility = bytes(capacity).put(0, intangibility, 0, end);
+    grabbed = bytes(capacity).put(0, grabbed, 0, end);
+    splatted = bytes(capacity).put(0, splatted, 0, end);
+    type = bytes(capacity).put(0, type, 0, end);
+  }
+
+  @Override
+  float x(int slot) {
+    return x.get(slot);
+  }
+
+  @Override
+  void setX(int slot, float x) {
+    this.x.put(slot, x);
+  }
+
+  @Override
+  float y(int slot) {
+    return y.get(slot);
+  }
+
+  @Override
+  void setY(int slot, float y) {
+    this.y.put(slot, y);
+  }
+
+  @Override
+  float vx(int slot) {
+    return vx.get(slot);
+  }
+
+  @Override
+  void setVx(int slot, float vx) {
+    this.vx.put(slot, vx);
+  }
+
+  @Override
+  float vy(int slot) {
+    return vy.get(slot);
+  }
+
+  @Override
+  void setVy(int slot, float vy) {
+    this.vy.put(slot, vy);
+  }
+
+  @Override
+  float lifespan(int slot) {
+    return lifespan.get(slot);
+  }
+
+  @Override
+  void setLifespan(int slot, float lifespan) {
+    this.lifespan.put(slot, lifespan);
+  }
+
+  @Override
+  float initialLife(int slot) {
+    return initialLife.get(slot);
+  }
+
+  @Override
+  void setInitialLife(int slot, float initialLife) {
+    this.initialLife.put(slot, initialLife);
+  }
+
+  @Override
+  float lifeDrain(int slot) {
+    return lifeDrain.get(slot);
+  }
+
+  @Override
+  void setLifeDrain(int slot, float lifeDrain) {
+    this.lifeDrain.put(slot, lifeDrain);
+  }
+
+  @Override
+  short mass(int slot) {
+    return mass.get(slot);
+  }
+
+  @Override
+  void setMass(int slot, short mass) {
+    this.mass.put(slot, mass);
+  }
+
+  @Override
+  short radius(int slot) {
+    return radius.get(slot);
+  }
+
+  @Override
+  void setRadius(int slot, short radius) {
+    this.radius.put(slot, radius);
+  }
+
+  @Override
+  short immortality(int slot) {
+    return immortality.get(slot);
+  }
+
+  @Override
+  void setImmortality(int slot, short immortality) {
+    this.immortality.put(slot, immortality);
+  }
+
+  @Override
+  byte intangibility(int slot) {
+    return intangibility.get(slot);
+  }
+
+  @Override
+  void setIntangibility(int slot, byte intangibility) {
+    this.intangibility.put(slot, intangibility);
+  }
+
+  @Override
+  boolean grabbed(int slot) {
+    return grabbed.get(slot) != 0;
+  }
+
+  @Override
+  void setGrabbed(int slot, boolean grabbed) {
+    this.grabbed.put(slot, (byte) (grabbed ? 1 : 0));
+  }
+
+  @Override
+  boolean splatted(int slot) {
+    return splatted.get(slot) != 0;
+  }
+
+  @Override
+  void setSplatted(int slot, boolean splatted) {
+    this.splatted.put(slot, (byte) (splatted ? 1 : 0));
+  }
+
+  @Override
+  byte type(int slot) {
+    return type.get(slot);
+  }
+
+  @Override
+  void setType(int slot, byte type) {
+    this.type.put(slot, type);
+  }
+
+  /**
+   * Writes the used part of every column, since buffers cannot be
+   * serialised themselves
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    for (int i = 0; i < end(); i++) {
+      out.writeFloat(x.get(i));
+      out.writeFloat(y.get(i));
+      out.writeFloat(vx.get(i));
+      out.writeFloat(vy.get(i));
+      out.writeFloat(lifespan.get(i));
+      out.writeFloat(initialLife.get(i));
+      out.writeFloat(lifeDrain.get(i));
+      out.writeShort(mass.get(i));
+      out.writeShort(radius.get(i));
+      out.writeShort(immortality.get(i));
+      out.writeByte(intangibility.get(i));
+      out.writeByte(grabbed.get(i));
+      out.writeByte(splatted.get(i));
+      out.writeByte(type.get(i));
+    }
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+
+    final int capacity = capacity();
+    x = floats(capacity);
+    y = floats(capacity);
+    vx = floats(capacity);
+    vy = floats(capacity);
+    lifespan = floats(capacity);
+    initialLife = floats(capacity);
+    lifeDrain = floats(capacity);
+    mass = shorts(capacity);
+    radius = shorts(capacity);
+    immortality = shorts(capacity);
+    intangibility = bytes(capacity);
+    grabbed = bytes(capacity);
+    splatted = bytes(capacity);
+    type = bytes(capacity);
+
+    for (int i = 0; i < end(); i++) {
+      x.put(i, in.readFloat());
+      y.put(i, in.readFloat());
+      vx.put(i, in.readFloat());
+      vy.put(i, in.readFloat());
+      lifespan.put(i, in.readFloat());
+      initialLife.put(i, in.readFloat());
+      lifeDrain.put(i, in.readFloat());
+      mass.put(i, in.readShort());
+      radius.put(i, in.readShort());
+      immortality.put(i, in.readShort());
+      intangibility.put(i, in.readByte());
+      grabbed.put(i, in.readByte());
+      splatted.put(i, in.readByte());
+      type.put(i, in.readByte());
+    }
+  }
+}
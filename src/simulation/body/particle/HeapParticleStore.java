@@ -0,0 +1,184 @@
+package simulation.body.particle;
+
+import java.util.Arrays;
+
+/**
+ * Particle store that keeps its columns in primitive arrays on the heap
+ */
+public final class HeapParticleStore extends ParticleStore {
+
+  private static final long serialVersionUID = 2048113570694213L;
+
+  private float[] x = new float[INITIAL_CAPACITY];
+  private float[] y = new float[INITIAL_CAPACITY];
+  private float[] vx = new float[INITIAL_CAPACITY];
+  private float[] vy = new float[INITIAL_CAPACITY];
+  private float[] lifespan = new float[INITIAL_CAPACITY];
+  private float[] initialLife = new float[INITIAL_CAPACITY];
+  private float[] lifeDrain = new float[INITIAL_CAPACITY];
+  private short[] mass = new short[INITIAL_CAPACITY];
+  private short[] radius = new short[INITIAL_CAPACITY];
+  private short[] immortality = new short[INITIAL_CAPACITY];
+  private byte[] intangibility = new byte[INITIAL_CAPACITY];
+  private boolean[] grabbed = new boolean[INITIAL_CAPACITY];
+  private boolean[] splatted = new boolean[INITIAL_CAPACITY];
+  private byte[] type = new byte[INITIAL_CAPACITY];
+
+  @Override
+  protected void grow(int capacity) {
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    vx = Arrays.copyOf(vx, capacity);
+    vy = Arrays.copyOf(vy, capacity);
+    lifespan = Arrays.copyOf(lifespan, capacity);
+    initialLife = Arrays.copyOf(initialLife, capacity);
+    lifeDrain = Arrays.copyOf(lifeDrain, capacity);
+    mass = Arrays.copyOf(mass, capacity);
+    radius = Arrays.copyOf(radius, capacity);
+    immortality = Arrays.copyOf(immortality, capacity);
+    intangibility = Arrays.copyOf(intangibility, capacity);
+    grabbed = Arrays.copyOf(grabbed, capacity);
+    splatted = Arrays.copyOf(splatted, capacity);
+    type = Arrays.copyOf(type, capacity);
+  }
+
+  @Override
+  float x(int slot) {
+    return x[slot];
+  }
+
+  @Override
+  void setX(int slot, float x) {
+    this.x[slot] = x;
+  }
+
+  @Override
+  float y(int slot) {
+    return y[slot];
+  }
+
+  @Override
+  void setY(int slot, float y) {
+    this.y[slot] = y;
+  }
+
+  @Override
+  float vx(int slot) {
+    return vx[slot];
+  }
+
+  @Override
+  void setVx(int slot, float vx) {
+    this.vx[slot] = vx;
+  }
+
+  @Override
+  float vy(int slot) {
+    return vy[slot];
+  }
+
+  @Override
+  void setVy(int slot, float vy) {
+    this.vy[slot] = vy;
+  }
+
+  @Override
+  float lifespan(int slot) {
+    return lifespan[slot];
+  }
+
+  @Override
+  void setLifespan(int slot, float lifespan) {
+    this.lifespan[slot] = lifespan;
+  }
+
+  @Override
+  float initialLife(int slot) {
+    return initialLife[slot];
+  }
+
+  @Override
+  void setInitialLife(int slot, float initialLife) {
+    this.initialLife[slot] = initialLife;
+  }
+
+  @Override
+  float lifeDrain(int slot) {
+    return lifeDrain[slot];
+  }
+
+  @Override
+  void setLifeDrain(int slot, float lifeDrain) {
+    this.lifeDrain[slot] = lifeDrain;
+  }
+
+  @Override
+  short mass(int slot) {
+    return mass[slot];
+  }
+
+  @Override
+  void setMass(int slot, short mass) {
+    this.mass[slot] = mass;
+  }
+
+  @Override
+  short radius(int slot) {
+    return radius[slot];
+  }
+
+  @Override
+  void setRadius(int slot, short radius) {
+    this.radius[slot] = radius;
+  }
+
+  @Override
+  short immortality(int slot) {
+    return immortality[slot];
+  }
+
+  @Override
+  void setImmortality(int slot, short immortality) {
+    this.immortality[slot] = immortality;
+  }
+
+  @Override
+  byte intangibility(int slot) {
+    return intangibility[slot];
+  }
+
+  @Override
+  void setIntangibility(int slot, byte intangibility) {
+    this.intangibility[slot] = intangibility;
+  }
+
+  @Override
+  boolean grabbed(int slot) {
+    return grabbed[slot];
+  }
+
+  @Override
+  void setGrabbed(int slot, boolean grabbed) {
+    this.grabbed[slot] = grabbed;
+  }
+
+  @Override
+  boolean splatted(int slot) {
+    return splatted[slot];
+  }
+
+  @Override
+  void setSplatted(int slot, boolean splatted) {
+    this.splatted[slot] = splatted;
+  }
+
+  @Override
+  byte type(int slot) {
+    return type[slot];
+  }
+
+  @Override
+  void setType(int slot, byte type) {
+    this.type[slot] = type;
+  }
+}
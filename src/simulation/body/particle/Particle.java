@@ -2,56 +2,118 @@ package simulation.body.particle;
 
 import java.awt.Color;
 import java.awt.geom.Ellipse2D;
-import java.util.stream.Stream;
 import simulation.Settings;
 import simulation.Settings.Constants;
 import simulation.hash.Client;
+import simulation.hash.ClientConsumer;
 import simulation.util.MathUtils;
 import simulation.util.Vec2;
 import simulation.util.constructor.ParticleParams;
 
-public class Particle implements Client {
+public class Particle implements Client, ClientConsumer {
 
   private static final long serialVersionUID = 93427523424L;
 
-  protected final Vec2 position;
-  protected final Vec2 velocity;
-  protected final short radius;
-  protected final short mass;
-  protected short immortality;
-  protected byte intangibility = 0;
-  protected float lifespan;
+  protected final ParticleStore store;
+  protected final int slot;
   protected Color colour;
-  protected final float initialLife;
-  protected float lifeDrain = 1;
-  protected boolean grabbed = false;
 
-  protected final Ellipse2D.Float bounds;
+  private final Ellipse2D.Float bounds = new Ellipse2D.Float();
 
-  public Particle(ParticleParams p) {
-    position = new Vec2(p.position());
-    velocity = new Vec2(p.velocity());
-    updateColour();
+  public Particle(ParticleStore store, ParticleParams p) {
+    this.store = store;
+    slot = store.allocate(this, kind());
+    reset(p);
+  }
+
+  private byte kind() {
+    return this instanceof SplatParticle
+      ? ParticleStore.SPLAT
+      : ParticleStore.PARTICLE;
+  }
 
-    immortality = p.immortality();
-    initialLife = p.initialLife();
-    lifespan = p.initialLife();
+  /**
+   * Puts the particle in the state it would be made in from {@code p}
+   * @param p the parameters
+   */
+  public final void reset(ParticleParams p) {
+    reset(
+      p.position().x(),
+      p.position().y(),
+      p.velocity().x(),
+      p.velocity().y(),
+      p.mass(),
+      p.immortality(),
+      p.initialLife(),
+      p.strength(),
+      p.charge()
+    );
+  }
 
-    mass = p.mass();
-    radius =
+  /**
+   * Puts the particle in the state it would be made in from parameters with
+   * these components, without making them. Called from the constructor, so
+   * overrides must not rely on fields of their own being initialised.
+   */
+  protected void reset(
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife,
+    short strength,
+    ChargedParticle.Charge charge
+  ) {
+    store.restore(this, kind());
+
+    store.setX(slot, x);
+    store.setY(slot, y);
+    store.setVx(slot, vx);
+    store.setVy(slot, vy);
+
+    store.setImmortality(slot, immortality);
+    store.setInitialLife(slot, initialLife);
+    store.setLifespan(slot, initialLife);
+
+    store.setMass(slot, mass);
+    store.setRadius(
+      slot,
       (short) MathUtils.clamp(
-        p.mass() / Settings.get(Constants.MASS_RADIUS_RATIO),
+        mass / Settings.get(Constants.MASS_RADIUS_RATIO),
         Settings.get(Constants.MIN_RADIUS),
         Settings.get(Constants.MAX_RADIUS)
-      );
+      )
+    );
+  }
 
-    bounds = new Ellipse2D.Float(position.x(), position.y(), radius, radius);
+  /**
+   * @return a handle that resolves to this particle through
+   * {@link ParticleStore#resolve(long)} until it is deleted
+   */
+  public long handle() {
+    return store.handle(slot);
   }
 
   /**
-   * @return the bounds
+   * @return the store the particle is in
+   */
+  public ParticleStore getStore() {
+    return store;
+  }
+
+  /**
+   * @return the bounds at the current position
    */
   public Ellipse2D.Float getBounds() {
+    final short radius = getRadius();
+    bounds.setFrame(
+      getX() - radius,
+      getY() - radius,
+      radius * 2f,
+      radius * 2f
+    );
     return bounds;
   }
 
@@ -59,208 +121,237 @@ public class Particle implements Client {
    * @return the immortality
    */
   public short getImmortality() {
-    return immortality;
+    return store.immortality(slot);
   }
 
   public boolean collisionEnabled() {
-    return intangibility <= 0;
+    return store.intangibility(slot) <= 0;
   }
 
   /**
    * @return the radius
    */
+  @Override
   public short getRadius() {
-    return radius;
+    return store.radius(slot);
   }
 
   public boolean isDead() {
-    return lifespan <= initialLife / 2;
+    return store.lifespan(slot) <= store.initialLife(slot) / 2;
   }
 
   /**
    * @return the mass
    */
   public short getMass() {
-    return mass;
+    return store.mass(slot);
   }
 
-  public boolean detectCollision(Particle other) {
+  /**
+   * Resolves a contact between this particle and {@code other}, changing the
+   * velocities of both. Only resolves a contact once, so the particles
+   * {@link #react(Particle) react} to it separately.
+   * @param other the other particle
+   * @return {@code true} if the particles collided, {@code false} otherwise
+   */
+  public final boolean detectCollision(Particle other) {
+    final ParticleStore s = store;
+    final int i = slot;
+    final int j = other.slot;
+    final boolean held = s.grabbed(i);
+
     if (
-      !collisionEnabled() || !other.collisionEnabled() || other.grabbed
+      !collisionEnabled() || !other.collisionEnabled() || s.grabbed(j)
     ) return false;
 
-    final Vec2 dv = new Vec2(position).sub(other.getPosition());
+    float dx = s.x(i) - s.x(j);
+    float dy = s.y(i) - s.y(j);
+    final float length = (float) Math.sqrt(dx * dx + dy * dy);
 
-    if (dv.getLength() > radius + other.getRadius()) return false;
+    if (length > s.radius(i) + s.radius(j)) return false;
 
-    final Vec2 rv = new Vec2(other.getVelocity()).sub(velocity);
+    if (length > 0) {
+      dx /= length;
+      dy /= length;
+    } else dx = dy = 0;
 
-    final float speed = rv.dot(dv.normalise()) * Settings.get(Settings.COR);
+    final float vxi = s.vx(i);
+    final float vyi = s.vy(i);
+    final float vxj = s.vx(j);
+    final float vyj = s.vy(j);
 
-    if (speed <= 0) return false;
+    final float speed =
+      ((vxj - vxi) * dx + (vyj - vyi) * dy) * Settings.get(Settings.COR);
 
-    if (!grabbed) {
-      final float impulse = (2 * speed) / (mass + other.mass);
+    if (speed <= 0) return false;
 
-      velocity.add(new Vec2(dv).mul(other.mass * impulse));
-      other.velocity.sub(dv.mul(mass * impulse));
-    } else other.getVelocity().sub(dv.mul(speed * 2));
+    if (!held) {
+      final short mi = s.mass(i);
+      final short mj = s.mass(j);
+      final float impulse = (2 * speed) / (mi + mj);
+
+      s.setVx(i, vxi + dx * (mj * impulse));
+      s.setVy(i, vyi + dy * (mj * impulse));
+      s.setVx(j, vxj - dx * (mi * impulse));
+      s.setVy(j, vyj - dy * (mi * impulse));
+    } else {
+      s.setVx(j, vxj - dx * (speed * 2));
+      s.setVy(j, vyj - dy * (speed * 2));
+    }
 
     final float drain = speed / 500;
 
-    if (!grabbed) lifeDrain += drain;
-    other.lifeDrain += drain;
+    if (!held) s.setLifeDrain(i, s.lifeDrain(i) + drain);
+    s.setLifeDrain(j, s.lifeDrain(j) + drain);
 
     return true;
   }
 
-  public void update(short width, short height) {
-    updateCalculations(width, height);
-    updatePosition();
+  /**
+   * Reacts to a collision with {@code other} once it has been resolved, from
+   * whichever side
+   * @param other the other particle
+   * @return {@code true} if the particle is to be deleted, {@code false}
+   * otherwise
+   */
+  public boolean react(Particle other) {
+    return false;
   }
 
   /**
-   * @return the position
+   * Updates any state that is not kept in the store, after the store has
+   * integrated the particle
    */
-  public Vec2 getPosition() {
-    return position;
+  public void updateState() {
+    // Used in subclasses
   }
 
   /**
-   * @return the velocity
+   * @return a copy of the position
    */
-  public Vec2 getVelocity() {
-    return velocity;
+  public Vec2 getPosition() {
+    return new Vec2(store.x(slot), store.y(slot));
   }
 
   /**
-   * @return the colour
+   * @param x the new x
+   * @param y the new y
    */
-  public Color getColour() {
-    return colour;
+  public void setPosition(float x, float y) {
+    store.setX(slot, x);
+    store.setY(slot, y);
   }
 
   /**
-   * @return the lifespan
+   * @return a copy of the velocity
    */
-  public float getLifespan() {
-    return lifespan;
+  public Vec2 getVelocity() {
+    return new Vec2(store.vx(slot), store.vy(slot));
   }
 
-  @Override
-  public float getX() {
-    return position.x();
+  /**
+   * @return the x component of the velocity
+   */
+  public float getVelocityX() {
+    return store.vx(slot);
   }
 
-  @Override
-  public float getY() {
-    return position.y();
+  /**
+   * @return the y component of the velocity
+   */
+  public float getVelocityY() {
+    return store.vy(slot);
   }
 
-  public short getNearRadius() {
-    return 0;
+  /**
+   * @param vx the new x component of the velocity
+   * @param vy the new y component of the velocity
+   */
+  public void setVelocity(float vx, float vy) {
+    store.setVx(slot, vx);
+    store.setVy(slot, vy);
   }
 
-  public void grab() {
-    grabbed = true;
-    velocity.set(0, 0);
+  /**
+   * @param velocity the new velocity
+   */
+  public void setVelocity(Vec2 velocity) {
+    setVelocity(velocity.x(), velocity.y());
   }
 
-  public void release() {
-    grabbed = false;
+  /**
+   * @param dv the change in velocity
+   */
+  public void addVelocity(Vec2 dv) {
+    store.setVx(slot, store.vx(slot) + dv.x());
+    store.setVy(slot, store.vy(slot) + dv.y());
   }
 
-  protected boolean checkBoundaries(short width, short height) {
-    float diff;
-    boolean collided = false;
-
-    final float x = position.x();
-    final float y = position.y();
-
-    final float vx = Math.abs(velocity.x());
-    final float vy = Math.abs(velocity.y());
-
-    final float cor = Settings.get(Settings.COR);
-
-    if ((diff = x - radius) < 0) {
-      position.setX(radius);
-      velocity.setX(vx * cor + diff);
-      lifeDrain += 0.012 + (vx / 10000);
-      collided = true;
-    } else if ((diff = x + radius) > width) {
-      position.setX((float) width - radius);
-      velocity.setX(-vx * cor - (width - diff));
-      lifeDrain += 0.012 + (vx / 10000);
-      collided = true;
-    }
-
-    if ((diff = y - radius) < 0) {
-      position.setY(radius);
-      velocity.setY(vy * cor + diff);
-      lifeDrain += 0.012 + (vy / 10000);
-      collided = true;
-    } else if ((diff = y + radius) > height) {
-      position.setY((float) height - radius);
-      velocity.setY(-vy * cor - (height - diff));
-      lifeDrain += 0.012 + (vy / 10000);
-      collided = true;
-    }
-
-    return collided;
+  /**
+   * @param dx the change in the x component of the velocity
+   * @param dy the change in the y component of the velocity
+   */
+  public void addVelocity(float dx, float dy) {
+    store.setVx(slot, store.vx(slot) + dx);
+    store.setVy(slot, store.vy(slot) + dy);
   }
 
-  protected final void updatePosition() {
-    position.add(new Vec2(velocity).mul(Settings.get(Settings.DT)));
-    bounds.setFrame(
-      position.x() - radius,
-      position.y() - radius,
-      radius * 2f,
-      radius * 2f
+  /**
+   * Raises each component of the velocity to a power, keeping its sign
+   * @param exponent the power
+   */
+  public void powVelocity(float exponent) {
+    final float vx = store.vx(slot);
+    final float vy = store.vy(slot);
+    setVelocity(
+      (float) Math.pow(Math.abs(vx), exponent) * Math.signum(vx),
+      (float) Math.pow(Math.abs(vy), exponent) * Math.signum(vy)
     );
   }
 
-  protected final void updateVelocity() {
-    final float dt = Settings.get(Settings.DT);
-    // Gravity
-    velocity.add(0, Settings.get(Settings.GRAVITY) * dt);
-
-    // Air resistance
-    velocity.sub(
-      new Vec2(velocity)
-        .square()
-        .mul(
-          (float) Math.PI *
-          ((radius * radius) / 50_000f) *
-          Settings.get(Constants.AIR_CONSTANT) *
-          Settings.get(Settings.AIR_DENSITY) *
-          dt
-        )
-    );
+  /**
+   * @return the colour
+   */
+  public Color getColour() {
+    return colour != null ? colour : Particle.getColour(getVelocity());
+  }
 
-    updateColour();
+  /**
+   * @return the lifespan
+   */
+  public float getLifespan() {
+    return store.lifespan(slot);
   }
 
-  protected void updateStats() {
-    final float time = Settings.get(Settings.DT) * 100;
-    if (immortality > 0) immortality -= time;
-    if (intangibility > 0) intangibility -= time;
+  @Override
+  public float getX() {
+    return store.x(slot);
+  }
 
-    final float dt = Settings.get(Settings.DT);
-    if (lifespan > 0 && !grabbed) {
-      float drain = 0.1f;
+  @Override
+  public float getY() {
+    return store.y(slot);
+  }
 
-      if (lifespan > 50_000) {
-        drain = 0.3f;
-      } else if (lifespan > initialLife * 0.75) drain = 0.2f;
+  /**
+   * @return the slot of the particle in its store
+   */
+  @Override
+  public int getId() {
+    return slot;
+  }
 
-      lifespan -= Math.pow(lifespan, drain) * lifeDrain * dt;
-    }
-    if (lifeDrain > 1) lifeDrain -= 0.1 * dt; else lifeDrain = 1;
+  public short getNearRadius() {
+    return 0;
   }
 
-  private void updateColour() {
-    if (getClass() != Particle.class) return;
-    colour = Particle.getColour(velocity);
+  public void grab() {
+    store.setGrabbed(slot, true);
+    setVelocity(0, 0);
+  }
+
+  public void release() {
+    store.setGrabbed(slot, false);
   }
 
   protected static Color getColour(Vec2 velocity) {
@@ -271,17 +362,22 @@ public class Particle implements Client {
     );
   }
 
-  private void updateCalculations(short width, short height) {
-    checkBoundaries(width, height);
-    updateVelocity();
-    updateStats();
-  }
-
-  public void affectNear(Stream<Particle> nearParticles) {
-    affectNear(this, nearParticles);
+  /**
+   * Applies this particle's effect to a client found near it
+   * @param client the nearby client
+   */
+  @Override
+  public void accept(Client client) {
+    if (client != this && client instanceof Particle) {
+      affect(this, (Particle) client);
+    }
   }
 
-  protected void affectNear(Particle p, Stream<Particle> nearParticles) {
+  /**
+   * @param p the particle whose effect is applied
+   * @param other the nearby particle to apply it to
+   */
+  protected void affect(Particle p, Particle other) {
     // Used in subclasses
   }
 }
@@ -0,0 +1,202 @@
+package simulation.body.particle;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import simulation.util.Workers;
+
+/**
+ * Every particle in the simulation, packed at the start of an array so going
+ * through them is a linear scan. Adding and removing during a tick only
+ * records the change, and every change takes effect at once on the next
+ * {@link #commit(Workers) commit}, so every scan between two commits sees
+ * the same particles.
+ * <p>
+ * A commit fills the hole left by each removed particle with one from the
+ * end of the array rather than shifting the rest down, and new particles
+ * are already on the end. {@link #contains(Object) contains} sees the
+ * recorded changes straight away, while {@link #size()}, {@link #get(int)
+ * get} and iteration only see them after the commit.
+ */
+public final class ParticleList
+  extends AbstractCollection<Particle>
+  implements Serializable {
+
+  private static final long serialVersionUID = 2390518734650921L;
+
+  private static final int NONE = -1;
+
+  /**
+   * The fewest holes worth filling on more than one thread
+   */
+  private static final int MOVE_CHUNK = 1 << 10;
+
+  private Particle[] particles = new Particle[ParticleStore.INITIAL_CAPACITY];
+  // The position of the particle in each store slot, or NONE
+  private int[] positions = filled(ParticleStore.INITIAL_CAPACITY);
+  private int size;
+  // The added particles are kept from size up to end
+  private int end;
+  private int[] removed = new int[16];
+  private int removedCount;
+
+  // Scratch for the commit: the holes below the new end, and the positions
+  // past it of the particles that fill them
+  private transient int[] holes = new int[0];
+  private transient int[] fillers = new int[0];
+  private final transient Workers.Range move = this::move;
+
+  private static int[] filled(int length) {
+    final int[] a = new int[length];
+    Arrays.fill(a, NONE);
+    return a;
+  }
+
+  /**
+   * @return the number of particles as of the last commit
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i the position, below {@link #size()}
+   * @return the particle at that position
+   */
+  public Particle get(int i) {
+    return particles[i];
+  }
+
+  /**
+   * @param o the particle
+   * @return {@code true} if the particle has been added and not removed since
+   */
+  @Override
+  public synchronized boolean contains(Object o) {
+    return o instanceof Particle p && position(p) != NONE;
+  }
+
+  /**
+   * Records a particle to be added on the next commit
+   * @param p the particle
+   * @return {@code false} if the particle is already in the list
+   */
+  @Override
+  public synchronized boolean add(Particle p) {
+    if (position(p) != NONE) return false;
+
+    if (end == particles.length) {
+      particles = Arrays.copyOf(particles, end * 2);
+    }
+    if (p.slot >= positions.length) {
+      final int length = positions.length;
+      positions = Arrays.copyOf(positions, Math.max(p.slot + 1, length * 2));
+      Arrays.fill(positions, length, positions.length, NONE);
+    }
+
+    particles[end] = p;
+    positions[p.slot] = end++;
+    return true;
+  }
+
+  /**
+   * Records a particle to be removed on the next commit. Safe to call from
+   * any thread.
+   * @param o the particle
+   * @return {@code false} if the particle is not in the list, or has been
+   * removed already
+   */
+  @Override
+  public synchronized boolean remove(Object o) {
+    if (!(o instanceof Particle p)) return false;
+
+    final int i = position(p);
+    if (i == NONE) return false;
+
+    // The slot can go to a new particle before the commit, so it is let go
+    // of now and the position is what is remembered
+    positions[p.slot] = NONE;
+    if (removedCount == removed.length) {
+      removed = Arrays.copyOf(removed, removedCount * 2);
+    }
+    removed[removedCount++] = i;
+    return true;
+  }
+
+  private int position(Particle p) {
+    if (p.slot >= positions.length) return NONE;
+
+    final int i = positions[p.slot];
+    return i != NONE && particles[i] == p ? i : NONE;
+  }
+
+  /**
+   * Applies every change recorded since the last commit. Must not run at
+   * the same time as anything else that uses the list.
+   * @param workers the workers to fill the holes with
+   */
+  public synchronized void commit(Workers workers) {
+    if (end == size && removedCount == 0) return;
+
+    final int last = end - removedCount;
+    if (holes.length < removedCount) {
+      holes = new int[removed.length];
+      fillers = new int[removed.length];
+    }
+
+    int count = 0;
+    for (int k = 0; k < removedCount; k++) {
+      final int i = removed[k];
+      particles[i] = null;
+      if (i < last) holes[count++] = i;
+    }
+
+    // There are as many particles past the new end as holes before it
+    for (int i = last, k = 0; i < end; i++) {
+      if (particles[i] != null) fillers[k++] = i;
+    }
+
+    if (count > MOVE_CHUNK) {
+      workers.forEach(count, MOVE_CHUNK, move);
+    } else move(0, count);
+
+    size = end = last;
+    removedCount = 0;
+  }
+
+  private void move(int from, int to) {
+    for (int k = from; k < to; k++) {
+      final Particle p = particles[fillers[k]];
+      particles[holes[k]] = p;
+      particles[fillers[k]] = null;
+      positions[p.slot] = holes[k];
+    }
+  }
+
+  @Override
+  public void forEach(Consumer<? super Particle> action) {
+    for (int i = 0; i < size; i++) action.accept(particles[i]);
+  }
+
+  @Override
+  public Iterator<Particle> iterator() {
+    return new Iterator<>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public Particle next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return particles[next++];
+      }
+    };
+  }
+}
@@ -0,0 +1,141 @@
+package simulation.body.particle;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import simulation.util.Vec2;
+import simulation.util.constructor.ClassConstructor;
+import simulation.util.constructor.ParticleParams;
+
+/**
+ * Recycles deleted particles by type, so spawning one is a
+ * {@link Particle#reset(ParticleParams) reset} instead of a reflective
+ * construction. A pooled particle keeps its slot in the store, reserved, so
+ * coming back needs no new slot either.
+ * <p>
+ * A recycled particle may still be referred to until the end of the tick it
+ * was deleted in, so it only becomes available after the next
+ * {@link #flush()}.
+ */
+public final class ParticlePool {
+
+  /**
+   * The most particles of one type kept around for reuse
+   */
+  private static final int MAX_POOLED = 1 << 12;
+
+  private final ParticleStore store;
+  private final Map<Class<? extends Particle>, ArrayDeque<Particle>> free =
+    new HashMap<>();
+  private final ArrayDeque<Particle> retired = new ArrayDeque<>();
+
+  /**
+   * @param store the store the pooled particles are in
+   */
+  public ParticlePool(ParticleStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @param type the type of particle, or {@code null} for a random one
+   * @param p the parameters to make it with
+   * @return a recycled particle reset to {@code p}, or a new one
+   */
+  public synchronized Particle obtain(
+    Class<? extends Particle> type,
+    ParticleParams p
+  ) {
+    final Class<? extends Particle> t = ClassConstructor.particleType(type);
+    final Particle recycled = poll(t);
+    if (recycled == null) return ClassConstructor.build(store, p, t);
+
+    recycled.reset(p);
+    return recycled;
+  }
+
+  /**
+   * Like {@link #obtain(Class, ParticleParams) obtain} with parameters made
+   * from the base particle constructor, without making them unless there is
+   * nothing to recycle
+   * @param type the type of particle
+   * @param x the x
+   * @param y the y
+   * @param vx the x component of the velocity
+   * @param vy the y component of the velocity
+   * @param mass the mass
+   * @param immortality the immortality
+   * @param initialLife the initial life
+   * @return a recycled particle reset to the parameters, or a new one
+   */
+  public synchronized Particle obtain(
+    Class<? extends Particle> type,
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife
+  ) {
+    final Particle recycled = poll(type);
+    if (recycled == null) {
+      return ClassConstructor.build(
+        store,
+        new ParticleParams(
+          new Vec2(x, y),
+          new Vec2(vx, vy),
+          mass,
+          immortality,
+          initialLife
+        ),
+        type
+      );
+    }
+
+    recycled.reset(
+      x,
+      y,
+      vx,
+      vy,
+      mass,
+      immortality,
+      initialLife,
+      mass,
+      ChargedParticle.Charge.random()
+    );
+    return recycled;
+  }
+
+  private Particle poll(Class<? extends Particle> type) {
+    final ArrayDeque<Particle> pooled = free.get(type);
+    return pooled == null ? null : pooled.poll();
+  }
+
+  /**
+   * Takes a deleted particle back. It stops being integrated straight away,
+   * and is handed out again after the next {@link #flush()}, or its slot is
+   * freed if enough of its type are pooled already.
+   * @param p the deleted particle
+   */
+  public synchronized void recycle(Particle p) {
+    final ArrayDeque<Particle> pooled = free.get(p.getClass());
+    if (pooled != null && pooled.size() >= MAX_POOLED) {
+      store.release(p);
+      return;
+    }
+
+    store.reserve(p);
+    retired.add(p);
+  }
+
+  /**
+   * Makes the particles recycled since the last call available. Must only be
+   * called once nothing refers to them, between ticks.
+   */
+  public synchronized void flush() {
+    Particle p;
+    while ((p = retired.poll()) != null) {
+      free.computeIfAbsent(p.getClass(), k -> new ArrayDeque<>()).push(p);
+    }
+  }
+}
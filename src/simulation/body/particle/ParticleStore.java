@@ -0,0 +1,383 @@
+package simulation.body.particle;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import simulation.Settings;
+import simulation.Settings.Constants;
+
+/**
+ * Keeps the state of every particle in parallel columns, one slot per
+ * particle. A {@link Particle} is a view over its slot, so the integration
+ * step runs as tight loops over contiguous memory instead of chasing an
+ * object and two vectors per particle.
+ * <p>
+ * Where the columns are kept is up to the implementation, see
+ * {@link Memory}. Slots are only handed out and released between phases,
+ * never while {@link #integrate(int, int, short, short) integrate} is
+ * running, so the columns are never grown under a worker.
+ * <p>
+ * A particle can be referred to by a {@code long} handle, its slot in the low
+ * half and the generation of the slot in the high half. The generation
+ * moves on whenever the slot is emptied, so a handle kept past the
+ * particle's deletion resolves to nothing rather than to whatever reuses
+ * the slot. Every slot a store can hold fits in a handle.
+ */
+public abstract class ParticleStore implements Serializable {
+
+  /**
+   * Where the columns of a store are kept
+   */
+  public enum Memory {
+    /** In primitive arrays on the heap */
+    HEAP,
+    /** In direct buffers outside the heap */
+    DIRECT,
+  }
+
+  private static final long serialVersionUID = 5713264094835162L;
+
+  protected static final int INITIAL_CAPACITY = 1 << 10;
+
+  /** Type of a slot that does not hold a particle */
+  static final byte FREE = 0;
+  /** Type of a slot that holds a particle */
+  static final byte PARTICLE = 1;
+  /** Type of a slot that holds a particle that can splat on a wall */
+  static final byte SPLAT = 2;
+
+  /**
+   * A handle that never resolves to a particle. Its slot is negative.
+   */
+  public static final long NO_HANDLE = -1;
+
+  private Particle[] views = new Particle[INITIAL_CAPACITY];
+  private int[] generations = new int[INITIAL_CAPACITY];
+  private int[] free = new int[INITIAL_CAPACITY];
+  private int freeCount;
+  private int end;
+  private int size;
+
+  /**
+   * @return the number of particles in the store
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return one past the highest slot in use, the bound to integrate up to
+   */
+  public int end() {
+    return end;
+  }
+
+  /**
+   * @return the number of slots every column has room for
+   */
+  protected int capacity() {
+    return views.length;
+  }
+
+  /**
+   * @param slot the slot
+   * @return the particle in the slot, or {@code null} if it is free
+   */
+  public Particle get(int slot) {
+    return views[slot];
+  }
+
+  /**
+   * @param slot the slot
+   * @return the handle of the particle in the slot now
+   */
+  public long handle(int slot) {
+    return (long) generations[slot] << 32 | slot;
+  }
+
+  /**
+   * @param handle a handle from {@link #handle(int) handle}, or
+   * {@link #NO_HANDLE}
+   * @return the particle the handle was made for, or {@code null} if it has
+   * since been deleted, even if its slot has been reused
+   */
+  public Particle resolve(long handle) {
+    final int slot = (int) handle;
+    if (slot < 0 || slot >= end || handle(slot) != handle) return null;
+    return views[slot];
+  }
+
+  /**
+   * Gives a particle a slot, reusing a released one if there is one
+   * @param view the particle
+   * @param kind the type of the slot
+   * @return the slot
+   */
+  synchronized int allocate(Particle view, byte kind) {
+    final int slot;
+    if (freeCount > 0) {
+      slot = free[--freeCount];
+    } else {
+      if (end == views.length) {
+        grow(end * 2);
+        views = Arrays.copyOf(views, end * 2);
+        generations = Arrays.copyOf(generations, end * 2);
+      }
+      slot = end++;
+    }
+
+    occupy(slot, view, kind);
+    return slot;
+  }
+
+  /**
+   * Puts a particle back in the slot it kept when it was
+   * {@link #reserve(Particle) reserved}
+   * @param view the particle
+   * @param kind the type of the slot
+   */
+  synchronized void restore(Particle view, byte kind) {
+    if (views[view.slot] == null) occupy(view.slot, view, kind);
+  }
+
+  private void occupy(int slot, Particle view, byte kind) {
+    views[slot] = view;
+    setType(slot, kind);
+    setLifeDrain(slot, 1);
+    setIntangibility(slot, (byte) 0);
+    setGrabbed(slot, false);
+    setSplatted(slot, false);
+    size++;
+  }
+
+  /**
+   * Empties the slot of a particle but keeps it for the particle, so a
+   * pooled particle can be {@link #restore(Particle, byte) restored} to it
+   * later. The slot is skipped by {@link #integrate(int, int, short, short)
+   * integrate} until then.
+   * @param p the particle
+   */
+  synchronized void reserve(Particle p) {
+    final int slot = p.slot;
+    if (views[slot] != p) return;
+
+    views[slot] = null;
+    setType(slot, FREE);
+    retire(slot);
+    size--;
+  }
+
+  /**
+   * Frees the slot of a particle. The particle must not be used afterwards.
+   * @param p the particle
+   */
+  public synchronized void release(Particle p) {
+    final int slot = p.slot;
+    if (views[slot] != p) return;
+
+    views[slot] = null;
+    setType(slot, FREE);
+    retire(slot);
+    if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+    free[freeCount++] = slot;
+    size--;
+  }
+
+  /**
+   * Moves a slot on to its next generation, so handles to the particle that
+   * was in it stop resolving
+   */
+  private void retire(int slot) {
+    generations[slot]++;
+  }
+
+  /**
+   * Grows every column, keeping the slots below {@link #end()}
+   * @param capacity the new number of slots
+   */
+  protected abstract void grow(int capacity);
+
+  abstract float x(int slot);
+
+  abstract void setX(int slot, float x);
+
+  abstract float y(int slot);
+
+  abstract void setY(int slot, float y);
+
+  abstract float vx(int slot);
+
+  abstract void setVx(int slot, float vx);
+
+  abstract float vy(int slot);
+
+  abstract void setVy(int slot, float vy);
+
+  abstract float lifespan(int slot);
+
+  abstract void setLifespan(int slot, float lifespan);
+
+  abstract float initialLife(int slot);
+
+  abstract void setInitialLife(int slot, float initialLife);
+
+  abstract float lifeDrain(int slot);
+
+  abstract void setLifeDrain(int slot, float lifeDrain);
+
+  abstract short mass(int slot);
+
+  abstract void setMass(int slot, short mass);
+
+  abstract short radius(int slot);
+
+  abstract void setRadius(int slot, short radius);
+
+  abstract short immortality(int slot);
+
+  abstract void setImmortality(int slot, short immortality);
+
+  abstract byte intangibility(int slot);
+
+  abstract void setIntangibility(int slot, byte intangibility);
+
+  abstract boolean grabbed(int slot);
+
+  abstract void setGrabbed(int slot, boolean grabbed);
+
+  abstract boolean splatted(int slot);
+
+  abstract void setSplatted(int slot, boolean splatted);
+
+  abstract byte type(int slot);
+
+  abstract void setType(int slot, byte type);
+
+  /**
+   * Moves every particle in a range of slots forward one step: bounces off
+   * the walls, applies gravity and air resistance, drains life and moves.
+   * Ranges that do not overlap can be integrated at the same time.
+   * @param from the first slot
+   * @param to one past the last slot
+   * @param width the width of the world
+   * @param height the height of the world
+   */
+  public void integrate(int from, int to, short width, short height) {
+    final float dt = Settings.get(Settings.DT);
+
+    bounce(from, to, width, height, Settings.get(Settings.COR));
+    accelerate(
+      from,
+      to,
+      Settings.get(Settings.GRAVITY) * dt,
+      Settings.get(Constants.AIR_CONSTANT) * Settings.get(Settings.AIR_DENSITY),
+      dt
+    );
+    drain(from, to, dt);
+
+    for (int i = from; i < to; i++) {
+      if (!moving(i)) continue;
+      setX(i, x(i) + vx(i) * dt);
+      setY(i, y(i) + vy(i) * dt);
+    }
+  }
+
+  private boolean moving(int i) {
+    return type(i) != FREE && !splatted(i);
+  }
+
+  private void bounce(int from, int to, short width, short height, float cor) {
+    for (int i = from; i < to; i++) {
+      final byte kind = type(i);
+      if (kind == FREE) continue;
+
+      final float px = x(i);
+      final float py = y(i);
+      final float ax = Math.abs(vx(i));
+      final float ay = Math.abs(vy(i));
+      final short r = radius(i);
+      float drain = lifeDrain(i);
+      boolean collided = false;
+      float diff;
+
+      if ((diff = px - r) < 0) {
+        setX(i, r);
+        setVx(i, ax * cor + diff);
+        drain += 0.012 + (ax / 10000);
+        collided = true;
+      } else if ((diff = px + r) > width) {
+        setX(i, (float) width - r);
+        setVx(i, -ax * cor - (width - diff));
+        drain += 0.012 + (ax / 10000);
+        collided = true;
+      }
+
+      if ((diff = py - r) < 0) {
+        setY(i, r);
+        setVy(i, ay * cor + diff);
+        drain += 0.012 + (ay / 10000);
+        collided = true;
+      } else if ((diff = py + r) > height) {
+        setY(i, (float) height - r);
+        setVy(i, -ay * cor - (height - diff));
+        drain += 0.012 + (ay / 10000);
+        collided = true;
+      }
+
+      if (!collided) continue;
+      setLifeDrain(i, drain);
+
+      // A splat particle that hits a wall hard enough stops here
+      final float sx = vx(i);
+      final float sy = vy(i);
+      if (kind == SPLAT && sx * sx + sy * sy > 100_000) setSplatted(i, true);
+    }
+  }
+
+  private void accelerate(
+    int from,
+    int to,
+    float gravity,
+    float air,
+    float dt
+  ) {
+    for (int i = from; i < to; i++) {
+      if (!moving(i)) continue;
+
+      final short r = radius(i);
+      final float sx = vx(i);
+      final float sy = vy(i) + gravity;
+
+      // Air resistance grows with the square of the speed
+      final float drag = (float) Math.PI * ((r * r) / 50_000f) * air * dt;
+      setVx(i, sx - sx * sx * Math.signum(sx) * drag);
+      setVy(i, sy - sy * sy * Math.signum(sy) * drag);
+    }
+  }
+
+  private void drain(int from, int to, float dt) {
+    final float time = dt * 100;
+
+    for (int i = from; i < to; i++) {
+      if (!moving(i)) continue;
+
+      final short immortal = immortality(i);
+      if (immortal > 0) setImmortality(i, (short) (immortal - time));
+      final byte intangible = intangibility(i);
+      if (intangible > 0) setIntangibility(i, (byte) (intangible - time));
+
+      final float life = lifespan(i);
+      float drain = lifeDrain(i);
+      if (life > 0 && !grabbed(i)) {
+        float rate = 0.1f;
+
+        if (life > 50_000) {
+          rate = 0.3f;
+        } else if (life > initialLife(i) * 0.75) rate = 0.2f;
+
+        setLifespan(i, (float) (life - Math.pow(life, rate) * drain * dt));
+      }
+      if (drain > 1) drain -= 0.1 * dt; else drain = 1;
+      setLifeDrain(i, drain);
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package simulation.body.particle;
 
 import java.awt.Color;
-import java.util.stream.Stream;
 import simulation.Settings;
 import simulation.util.constructor.ParticleParams;
 import simulation.util.gravity.Gravity;
@@ -9,11 +8,26 @@ import simulation.util.gravity.GravityUtils;
 
 public class RepulserParticle extends Particle implements Gravity {
 
-  private final short strength;
+  private short strength;
 
-  public RepulserParticle(ParticleParams p) {
-    super(p);
-    strength = p.strength();
+  public RepulserParticle(ParticleStore store, ParticleParams p) {
+    super(store, p);
+  }
+
+  @Override
+  protected void reset(
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife,
+    short strength,
+    ChargedParticle.Charge charge
+  ) {
+    super.reset(x, y, vx, vy, mass, immortality, initialLife, strength, charge);
+    this.strength = strength;
     colour = Color.GREEN;
   }
 
@@ -30,8 +44,8 @@ public class RepulserParticle extends Particle implements Gravity {
   }
 
   @Override
-  protected void affectNear(Particle p, Stream<Particle> nearParticles) {
+  protected void affect(Particle p, Particle other) {
     if (!(p instanceof Gravity)) return;
-    nearParticles.forEach(p1 -> GravityUtils.repel((Gravity) p, p1));
+    GravityUtils.repel((Gravity) p, other);
   }
 }
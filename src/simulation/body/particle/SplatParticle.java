@@ -8,32 +8,59 @@ public class SplatParticle extends Particle {
 
   private static final Random RANDOM = new Random();
 
-  public SplatParticle(ParticleParams p) {
-    super(p);
-    colour =
-      new Color(RANDOM.nextFloat(), RANDOM.nextFloat(), RANDOM.nextFloat());
+  /**
+   * Colours to pick from, made once so a reset particle needs no new one
+   */
+  private static final Color[] COLOURS = new Color[256];
+
+  static {
+    for (int i = 0; i < COLOURS.length; i++) {
+      COLOURS[i] =
+        new Color(RANDOM.nextFloat(), RANDOM.nextFloat(), RANDOM.nextFloat());
+    }
+  }
+
+  public SplatParticle(ParticleStore store, ParticleParams p) {
+    super(store, p);
+  }
+
+  @Override
+  protected void reset(
+    float x,
+    float y,
+    float vx,
+    float vy,
+    short mass,
+    short immortality,
+    float initialLife,
+    short strength,
+    ChargedParticle.Charge charge
+  ) {
+    super.reset(x, y, vx, vy, mass, immortality, initialLife, strength, charge);
+    colour = COLOURS[RANDOM.nextInt(COLOURS.length)];
   }
 
   @Override
   public boolean isDead() {
-    return lifespan <= initialLife * 0.75;
+    return store.lifespan(slot) <= store.initialLife(slot) * 0.75;
   }
 
   @Override
-  public boolean detectCollision(Particle other) {
-    if (!super.detectCollision(other)) return false;
+  public boolean react(Particle other) {
     return isTooFast();
   }
 
-  public boolean updateSplat(short width, short height) {
-    if (checkBoundaries(width, height) && isTooFast()) return true;
-    updateVelocity();
-    updateStats();
-    updatePosition();
-    return false;
+  /**
+   * @return {@code true} if the particle hit a wall too fast in the last
+   * step, {@code false} otherwise
+   */
+  public boolean hasSplatted() {
+    return store.splatted(slot);
   }
 
   private boolean isTooFast() {
-    return velocity.getLengthSq() > 100_000;
+    final float vx = store.vx(slot);
+    final float vy = store.vy(slot);
+    return vx * vx + vy * vy > 100_000;
   }
 }
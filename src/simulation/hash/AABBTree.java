@@ -0,0 +1,373 @@
+package simulation.hash;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Balanced bounding volume tree over axis aligned boxes. Leaves hold the
+ * items, every inner node holds the union of its children, and insertion
+ * picks the sibling that grows the tree's perimeter the least. Queries can run
+ * from any number of threads, but not at the same time as
+ * {@link #insert(Object, float, float, float, float) insert} or
+ * {@link #remove(Object) remove}.
+ */
+public final class AABBTree<T> {
+
+  private static final class Node<T> {
+
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+    private Node<T> parent;
+    private Node<T> left;
+    private Node<T> right;
+    private T item;
+    private int height;
+
+    private boolean isLeaf() {
+      return left == null;
+    }
+
+    private void union(Node<T> a, Node<T> b) {
+      minX = Math.min(a.minX, b.minX);
+      minY = Math.min(a.minY, b.minY);
+      maxX = Math.max(a.maxX, b.maxX);
+      maxY = Math.max(a.maxY, b.maxY);
+    }
+
+    private float perimeter() {
+      return 2 * ((maxX - minX) + (maxY - minY));
+    }
+
+    private float unionPerimeter(Node<T> o) {
+      return (
+        2 *
+        (
+          (Math.max(maxX, o.maxX) - Math.min(minX, o.minX)) +
+          (Math.max(maxY, o.maxY) - Math.min(minY, o.minY))
+        )
+      );
+    }
+
+    private boolean overlaps(float x0, float y0, float x1, float y1) {
+      return minX <= x1 && maxX >= x0 && minY <= y1 && maxY >= y0;
+    }
+
+    private boolean overlaps(float x, float y, float radius) {
+      final float dx = Math.max(minX - x, Math.max(0, x - maxX));
+      final float dy = Math.max(minY - y, Math.max(0, y - maxY));
+      return dx * dx + dy * dy <= radius * radius;
+    }
+  }
+
+  private final Map<T, Node<T>> leaves = new HashMap<>();
+  private Node<T> root;
+
+  /**
+   * @return the number of items in the tree
+   */
+  public int size() {
+    return leaves.size();
+  }
+
+  /**
+   * Adds an item, replacing its box if it is already in the tree
+   * @param item the item to add
+   * @param minX the left of the item's box
+   * @param minY the top of the item's box
+   * @param maxX the right of the item's box
+   * @param maxY the bottom of the item's box
+   */
+  public void insert(T item, float minX, float minY, float maxX, float maxY) {
+    remove(item);
+
+    final Node<T> leaf = new Node<>();
+    leaf.minX = minX;
+    leaf.minY = minY;
+    leaf.maxX = maxX;
+    leaf.maxY = maxY;
+    leaf.item = item;
+    leaves.put(item, leaf);
+
+    if (root == null) {
+      root = leaf;
+      return;
+    }
+
+    final Node<T> sibling = findSibling(leaf);
+    final Node<T> oldParent = sibling.parent;
+    final Node<T> parent = new Node<>();
+    parent.parent = oldParent;
+    parent.union(sibling, leaf);
+    parent.height = sibling.height + 1;
+
+    if (oldParent == null) {
+      root = parent;
+    } else if (oldParent.left == sibling) {
+      oldParent.left = parent;
+    } else oldParent.right = parent;
+
+    parent.left = sibling;
+    parent.right = leaf;
+    sibling.parent = parent;
+    leaf.parent = parent;
+
+    refit(parent);
+  }
+
+  /**
+   * @param item the item to remove
+   * @return {@code true} if the item was in the tree, {@code false} otherwise
+   */
+  public boolean remove(T item) {
+    final Node<T> leaf = leaves.remove(item);
+    if (leaf == null) return false;
+
+    if (leaf == root) {
+      root = null;
+      return true;
+    }
+
+    final Node<T> parent = leaf.parent;
+    final Node<T> grandParent = parent.parent;
+    final Node<T> sibling = parent.left == leaf ? parent.right : parent.left;
+
+    sibling.parent = grandParent;
+    if (grandParent == null) {
+      root = sibling;
+      return true;
+    }
+
+    if (grandParent.left == parent) {
+      grandParent.left = sibling;
+    } else grandParent.right = sibling;
+    refit(grandParent);
+
+    return true;
+  }
+
+  /**
+   * Calls {@code consumer} for every item whose box contains a point
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param consumer the consumer to pass each item to
+   */
+  public void forEachAt(float x, float y, Consumer<? super T> consumer) {
+    forEachInBox(x, y, x, y, consumer);
+  }
+
+  /**
+   * Calls {@code consumer} for every item whose box overlaps a box
+   * @param minX the left of the box
+   * @param minY the top of the box
+   * @param maxX the right of the box
+   * @param maxY the bottom of the box
+   * @param consumer the consumer to pass each item to
+   */
+  public void forEachInBox(
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    Consumer<? super T> consumer
+  ) {
+    if (root != null) forEachInBox(root, minX, minY, maxX, maxY, consumer);
+  }
+
+  /**
+   * Calls {@code consumer} for every item whose box overlaps a circle
+   * @param x the x of the circle's center
+   * @param y the y of the circle's center
+   * @param radius the radius of the circle
+   * @param consumer the consumer to pass each item to
+   */
+  public void forEachInCircle(
+    float x,
+    float y,
+    float radius,
+    Consumer<? super T> consumer
+  ) {
+    forEachInCircle(x, y, radius, (item, c) -> c.accept(item), consumer);
+  }
+
+  /**
+   * Calls {@code action} with every item whose box overlaps a circle and an
+   * argument, so per-query state can be passed without a new lambda
+   * @param x the x of the circle's center
+   * @param y the y of the circle's center
+   * @param radius the radius of the circle
+   * @param action the action to pass each item and {@code argument} to
+   * @param argument the second argument of every call to {@code action}
+   */
+  public <A> void forEachInCircle(
+    float x,
+    float y,
+    float radius,
+    BiConsumer<? super T, ? super A> action,
+    A argument
+  ) {
+    if (root != null) forEachInCircle(root, x, y, radius, action, argument);
+  }
+
+  /**
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param test the test an item must pass
+   * @return the first item whose box contains the point and that passes
+   * {@code test}, or {@code null} if there is none
+   */
+  public T findAt(float x, float y, Predicate<? super T> test) {
+    return root == null ? null : findAt(root, x, y, test);
+  }
+
+  private void forEachInBox(
+    Node<T> node,
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    Consumer<? super T> consumer
+  ) {
+    if (!node.overlaps(minX, minY, maxX, maxY)) return;
+    if (node.isLeaf()) {
+      consumer.accept(node.item);
+      return;
+    }
+    forEachInBox(node.left, minX, minY, maxX, maxY, consumer);
+    forEachInBox(node.right, minX, minY, maxX, maxY, consumer);
+  }
+
+  private <A> void forEachInCircle(
+    Node<T> node,
+    float x,
+    float y,
+    float radius,
+    BiConsumer<? super T, ? super A> action,
+    A argument
+  ) {
+    if (!node.overlaps(x, y, radius)) return;
+    if (node.isLeaf()) {
+      action.accept(node.item, argument);
+      return;
+    }
+    forEachInCircle(node.left, x, y, radius, action, argument);
+    forEachInCircle(node.right, x, y, radius, action, argument);
+  }
+
+  private T findAt(Node<T> node, float x, float y, Predicate<? super T> test) {
+    if (!node.overlaps(x, y, x, y)) return null;
+    if (node.isLeaf()) return test.test(node.item) ? node.item : null;
+
+    final T found = findAt(node.left, x, y, test);
+    return found != null ? found : findAt(node.right, x, y, test);
+  }
+
+  /**
+   * Walks down the cheaper side until making a new parent here costs less
+   * than going further
+   */
+  private Node<T> findSibling(Node<T> leaf) {
+    Node<T> node = root;
+    while (!node.isLeaf()) {
+      final float combined = node.unionPerimeter(leaf);
+      final float cost = 2 * combined;
+      final float inheritance = 2 * (combined - node.perimeter());
+
+      final float leftCost = descendCost(node.left, leaf) + inheritance;
+      final float rightCost = descendCost(node.right, leaf) + inheritance;
+
+      if (cost < leftCost && cost < rightCost) break;
+      node = leftCost < rightCost ? node.left : node.right;
+    }
+    return node;
+  }
+
+  private float descendCost(Node<T> child, Node<T> leaf) {
+    final float combined = child.unionPerimeter(leaf);
+    return child.isLeaf() ? combined : combined - child.perimeter();
+  }
+
+  /**
+   * Rebalances and recomputes the boxes and heights from a node up to the root
+   */
+  private void refit(Node<T> node) {
+    while (node != null) {
+      node = balance(node);
+      node.height = 1 + Math.max(node.left.height, node.right.height);
+      node.union(node.left, node.right);
+      node = node.parent;
+    }
+  }
+
+  /**
+   * Rotates the taller grandchild up if the children's heights differ by more
+   * than one
+   * @return the node now in {@code a}'s place
+   */
+  private Node<T> balance(Node<T> a) {
+    if (a.isLeaf() || a.height < 2) return a;
+
+    final Node<T> b = a.left;
+    final Node<T> c = a.right;
+    final int balance = c.height - b.height;
+
+    if (balance > 1) {
+      final Node<T> f = c.left;
+      final Node<T> g = c.right;
+
+      replace(a, c);
+      c.left = a;
+      a.parent = c;
+
+      final Node<T> keep = f.height > g.height ? f : g;
+      final Node<T> move = keep == f ? g : f;
+      c.right = keep;
+      a.right = move;
+      move.parent = a;
+      a.union(b, move);
+      c.union(a, keep);
+      a.height = 1 + Math.max(b.height, move.height);
+      c.height = 1 + Math.max(a.height, keep.height);
+      return c;
+    }
+
+    if (balance < -1) {
+      final Node<T> d = b.left;
+      final Node<T> e = b.right;
+
+      replace(a, b);
+      b.left = a;
+      a.parent = b;
+
+      final Node<T> keep = d.height > e.height ? d : e;
+      final Node<T> move = keep == d ? e : d;
+      b.right = keep;
+      a.left = move;
+      move.parent = a;
+      a.union(c, move);
+      b.union(a, keep);
+      a.height = 1 + Math.max(c.height, move.height);
+      b.height = 1 + Math.max(a.height, keep.height);
+      return b;
+    }
+
+    return a;
+  }
+
+  /**
+   * Puts {@code with} in {@code node}'s place under {@code node}'s parent
+   */
+  private void replace(Node<T> node, Node<T> with) {
+    final Node<T> parent = node.parent;
+    with.parent = parent;
+    if (parent == null) {
+      root = with;
+    } else if (parent.left == node) {
+      parent.left = with;
+    } else parent.right = with;
+  }
+}
@@ -0,0 +1,12 @@
+package simulation.hash;
+
+@FunctionalInterface
+public interface BatchConsumer<T extends Client> {
+  /**
+   * @param query the client the search was made around
+   * @param near the clients found, only valid until this call returns
+   * @param count the number of clients found, the rest of {@code near} is
+   * left over from earlier searches
+   */
+  public void accept(T query, Client[] near, int count);
+}
@@ -0,0 +1,130 @@
+package simulation.hash;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+import simulation.util.KeySorter;
+import simulation.util.MathUtils;
+import simulation.util.Workers;
+
+/**
+ * Searches a {@link SpatialIndex} around many clients at once. The queries
+ * are sorted by the cell they are in and split into contiguous chunks that
+ * the workers claim in turn, so each stays in one small part of the index. The
+ * results of each query are passed on from the worker that found them, in a
+ * buffer that worker reuses for its next query.
+ */
+public final class BatchQuery {
+
+  /**
+   * Clients found by one worker's current query
+   */
+  private static final class Results implements ClientConsumer {
+
+    private Client[] clients = new Client[64];
+    private int size;
+
+    @Override
+    public void accept(Client client) {
+      if (size == clients.length) clients =
+        Arrays.copyOf(clients, size * 2);
+      clients[size++] = client;
+    }
+  }
+
+  private static final int THREADS = 16;
+
+  /**
+   * The fewest queries handed to one task
+   */
+  private static final int MIN_CHUNK = 64;
+
+  private final Workers workers = new Workers(THREADS - 1, "batch-query");
+  private final ThreadLocal<Results> localResults = ThreadLocal.withInitial(
+    Results::new
+  );
+  private final Workers.Range search = this::search;
+  private final SpatialIndex index;
+  private final float cellSize;
+
+  private Client[] batch = new Client[0];
+  private long[] batchOrder = new long[0];
+  private final KeySorter sorter = new KeySorter();
+
+  // The current batch, set for the workers before they start
+  private ToIntFunction<Client> radius;
+  private BatchConsumer<Client> consumer;
+
+  /**
+   * @param index the index to search
+   * @param cellSize the size of the cells the queries are sorted by
+   */
+  public BatchQuery(SpatialIndex index, float cellSize) {
+    this.index = index;
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * Searches around every client in {@code queries}. Must not run at the same
+   * time as another batch or anything that changes the index.
+   * @param queries the clients to search around
+   * @param radius the search radius of each query
+   * @param consumer the consumer to pass each query and its results to
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Client> void forEachNear(
+    Collection<? extends T> queries,
+    ToIntFunction<? super T> radius,
+    BatchConsumer<? super T> consumer
+  ) {
+    int n = 0;
+    for (T query : queries) {
+      if (n == batch.length) {
+        batch = Arrays.copyOf(batch, Math.max(64, n * 2));
+        batchOrder = new long[batch.length];
+      }
+      batch[n++] = query;
+    }
+    if (n == 0) return;
+
+    final Client[] points = batch;
+    final long[] order = batchOrder;
+    for (int i = 0; i < n; i++) {
+      final int morton = MathUtils.morton(
+        (int) Math.floor(points[i].getX() / cellSize),
+        (int) Math.floor(points[i].getY() / cellSize)
+      );
+      order[i] = ((long) morton << 32) | i;
+    }
+    sorter.sort(order, n);
+
+    // Every query is one of T, so the casts only widen what is passed back
+    this.radius = (ToIntFunction<Client>) radius;
+    this.consumer = (BatchConsumer<Client>) consumer;
+
+    final int chunk = Math.max(
+      MIN_CHUNK,
+      (n + THREADS * 4 - 1) / (THREADS * 4)
+    );
+    workers.forEach(n, chunk, search);
+
+    this.radius = null;
+    this.consumer = null;
+    Arrays.fill(points, 0, n, null);
+  }
+
+  private void search(int from, int to) {
+    final Results results = localResults.get();
+    for (int j = from; j < to; j++) {
+      final Client query = batch[(int) batchOrder[j]];
+      results.size = 0;
+      index.forEachNear(
+        query.getX(),
+        query.getY(),
+        (short) radius.applyAsInt(query),
+        results
+      );
+      consumer.accept(query, results.clients, results.size);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package simulation.hash;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+/**
+ * Storage for the cells of one level of an incremental {@link SpatialHash}
+ */
+interface CellGrid extends Serializable {
+  /**
+   * @param cx the cell x
+   * @param cy the cell y
+   * @return the cell, or {@code null} if it has not been created
+   */
+  CellMap.Cell get(int cx, int cy);
+
+  /**
+   * @param key the packed cell coordinates
+   * @return the cell, or {@code null} if it has not been created
+   */
+  default CellMap.Cell get(long key) {
+    return get((int) (key >> 32), (int) key);
+  }
+
+  /**
+   * Adds a client to a cell, creating the cell if needed
+   * @param cx the cell x
+   * @param cy the cell y
+   * @param home the home of the client to add
+   * @param level the level of the grid, where the home records the cell
+   */
+  void add(int cx, int cy, Home home, int level);
+
+  /**
+   * Removes a client from the cell its home records, noting the cell if that
+   * left it empty
+   * @param home the home of the client to remove
+   * @param level the level of the grid
+   */
+  void remove(Home home, int level);
+
+  /**
+   * Calls {@code consumer} for every client in a block of cells
+   * @param startX the first cell column
+   * @param startY the first cell row
+   * @param endX the last cell column
+   * @param endY the last cell row
+   * @param consumer the consumer to pass each client to
+   * @return the number of clients visited
+   */
+  default int forEachIn(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    ClientConsumer consumer
+  ) {
+    return forEachWithin(
+      startX,
+      startY,
+      endX,
+      endY,
+      0,
+      0,
+      Float.POSITIVE_INFINITY,
+      consumer
+    );
+  }
+
+  /**
+   * Calls {@code consumer} for the clients in a block of cells whose
+   * position is within a distance of a point
+   * @param startX the first cell column
+   * @param startY the first cell row
+   * @param endX the last cell column
+   * @param endY the last cell row
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param radiusSq the squared distance from the point to search
+   * @param consumer the consumer to pass each client to
+   * @return the number of clients tested
+   */
+  default int forEachWithin(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    float x,
+    float y,
+    float radiusSq,
+    ClientConsumer consumer
+  ) {
+    int visited = 0;
+    for (int cx = startX; cx <= endX; cx++) {
+      for (int cy = startY; cy <= endY; cy++) {
+        final CellMap.Cell cell = get(cx, cy);
+        if (cell != null) visited +=
+          cell.forEachWithin(x, y, radiusSq, consumer);
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * @param startX the first cell column
+   * @param startY the first cell row
+   * @param endX the last cell column
+   * @param endY the last cell row
+   * @return the number of clients in a block of cells
+   */
+  default int count(int startX, int startY, int endX, int endY) {
+    int count = 0;
+    for (int cx = startX; cx <= endX; cx++) {
+      for (int cy = startY; cy <= endY; cy++) {
+        final CellMap.Cell cell = get(cx, cy);
+        if (cell != null) count += cell.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param action the action to run for every cell, some of which may be
+   * empty
+   */
+  void forEachCell(Consumer<CellMap.Cell> action);
+
+  /**
+   * Frees the cells that were left empty since the last call, where that
+   * saves anything. Must not run at the same time as any other use of the
+   * grid.
+   */
+  void reclaim();
+}
@@ -0,0 +1,507 @@
+package simulation.hash;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Open addressing map from packed cell coordinates to the clients in that
+ * cell. Lookups are lock free and adding a cell is synchronized. A cell is
+ * put in the table with a release store that lookups read with an acquire
+ * load, so a lookup that finds a reused cell also sees its new key.
+ * <p>
+ * Cells that empty out are unlinked by {@link #reclaim() reclaim} and leave a
+ * tombstone behind, so lookups never lose their probe chain. Each reclaim
+ * starts a new epoch, and an unlinked cell is only handed out again, with its
+ * bucket, once the epoch it was unlinked in has passed. The table is rehashed
+ * when tombstones pile up or most of it is empty, so memory follows the
+ * number of occupied cells.
+ */
+final class CellMap implements CellGrid {
+
+  private static final long serialVersionUID = 3904275610238471L;
+
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  /**
+   * The most unlinked cells kept around for reuse, unless more cells than
+   * this are linked
+   */
+  private static final int MAX_POOLED = 1 << 12;
+
+  /**
+   * The most room a reused cell is given up front, so one crowded spot does
+   * not make every cell big
+   */
+  private static final int MAX_RESERVED = 1 << 6;
+
+  /**
+   * The clients in one cell, each with a copy of its position so queries can
+   * test distances without reaching into the clients. Adding and removing is
+   * synchronized on the cell, reads are not and must not overlap them. Each
+   * client's {@link Home} holds its position in the cell, so nothing has to
+   * search the cell for it.
+   */
+  static final class Cell implements Serializable {
+
+    private static final long serialVersionUID = 8127365410293847L;
+
+    private static final int INITIAL_SIZE = 8;
+
+    private long key;
+    private Client[] clients;
+    private Home[] homes;
+    private float[] xs;
+    private float[] ys;
+    private int size;
+    private long retired;
+    /** Whether the cell is on the emptied stack */
+    private boolean queued;
+    /** The next cell down the emptied stack */
+    private Cell nextEmptied;
+
+    Cell(long key) {
+      this(key, INITIAL_SIZE);
+    }
+
+    /**
+     * @param key the packed cell coordinates
+     * @param capacity the number of clients to make room for
+     */
+    Cell(long key, int capacity) {
+      this.key = key;
+      clients = new Client[capacity];
+      homes = new Home[capacity];
+      xs = new float[capacity];
+      ys = new float[capacity];
+    }
+
+    private Cell() {}
+
+    /**
+     * @return the cell x
+     */
+    int x() {
+      return (int) (key >> 32);
+    }
+
+    /**
+     * @return the cell y
+     */
+    int y() {
+      return (int) key;
+    }
+
+    /**
+     * @return the number of clients in the cell
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * @return the number of clients the cell has room for
+     */
+    int capacity() {
+      return clients.length;
+    }
+
+    /**
+     * Makes room for at least {@code capacity} clients. Must not overlap
+     * anything else using the cell.
+     * @param capacity the number of clients to make room for
+     */
+    void reserve(int capacity) {
+      if (clients.length >= capacity) return;
+
+      clients = Arrays.copyOf(clients, capacity);
+      homes = Arrays.copyOf(homes, capacity);
+      xs = Arrays.copyOf(xs, capacity);
+      ys = Arrays.copyOf(ys, capacity);
+    }
+
+    /**
+     * @param i the slot of the client
+     * @return the client
+     */
+    Client client(int i) {
+      return clients[i];
+    }
+
+    /**
+     * Adds a client, which must not be in a cell on the level already
+     * @param home the home of the client to add
+     * @param level the level the cell is on
+     */
+    synchronized void add(Home home, int level) {
+      if (size == clients.length) {
+        clients = Arrays.copyOf(clients, size * 2);
+        homes = Arrays.copyOf(homes, size * 2);
+        xs = Arrays.copyOf(xs, size * 2);
+        ys = Arrays.copyOf(ys, size * 2);
+      }
+      final Client client = home.client;
+      clients[size] = client;
+      homes[size] = home;
+      xs[size] = client.getX();
+      ys[size] = client.getY();
+      home.cells[level] = this;
+      home.slots[level] = size++;
+    }
+
+    /**
+     * Removes a client, moving the last client in the cell into its place
+     * @param home the home of the client to remove
+     * @param level the level the cell is on
+     * @return whether the client was in the cell
+     */
+    synchronized boolean remove(Home home, int level) {
+      if (home.cells[level] != this) return false;
+
+      final int i = home.slots[level];
+      size--;
+      clients[i] = clients[size];
+      homes[i] = homes[size];
+      xs[i] = xs[size];
+      ys[i] = ys[size];
+      homes[i].slots[level] = i;
+      clients[size] = null;
+      homes[size] = null;
+      home.cells[level] = null;
+      return true;
+    }
+
+    /**
+     * Marks the cell as on the emptied stack, if it is empty and not on it
+     * already
+     * @return whether the cell should be pushed onto the stack
+     */
+    synchronized boolean queue() {
+      if (queued || size != 0) return false;
+      return queued = true;
+    }
+
+    /**
+     * Copies the current position of a client that moved within the cell.
+     * Not synchronized, so it must not overlap adding to or removing from
+     * the cell, or moving the same client.
+     * @param i the position of the client in the cell
+     * @param client the client that moved
+     */
+    void move(int i, Client client) {
+      xs[i] = client.getX();
+      ys[i] = client.getY();
+    }
+
+    /**
+     * Calls {@code consumer} for the clients whose copied position is within
+     * a distance of a point
+     * @param x the x of the point
+     * @param y the y of the point
+     * @param radiusSq the squared distance from the point to search
+     * @param consumer the consumer to pass each client to
+     * @return the number of clients tested
+     */
+    int forEachWithin(
+      float x,
+      float y,
+      float radiusSq,
+      ClientConsumer consumer
+    ) {
+      final int n = size;
+      for (int i = 0; i < n; i++) {
+        final float dx = xs[i] - x;
+        final float dy = ys[i] - y;
+        if (dx * dx + dy * dy <= radiusSq) consumer.accept(clients[i]);
+      }
+      return n;
+    }
+
+    private Object readResolve() {
+      return clients == null ? TOMBSTONE : this;
+    }
+  }
+
+  private static final Cell TOMBSTONE = new Cell();
+
+  private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(
+    Cell[].class
+  );
+
+  private volatile Cell[] table = new Cell[INITIAL_CAPACITY];
+  private transient Cell[] spare;
+  private int size;
+  private int tombstones;
+  private long epoch;
+  // The most room any cell has needed, up to MAX_RESERVED. Reused cells are
+  // given this much, since the cells that come out of the pool most often
+  // would otherwise each grow in turn as they land on a crowded spot. Written
+  // without a lock, as it is only a hint.
+  private int crowded = Cell.INITIAL_SIZE;
+  // The room every linked cell has been given
+  private int reserved = Cell.INITIAL_SIZE;
+
+  // The cells that emptied since the last reclaim, as a stack linked through
+  // the cells themselves so emptying a cell never allocates
+  private final transient AtomicReference<Cell> emptied =
+    new AtomicReference<>();
+  private final transient ArrayDeque<Cell> retired = new ArrayDeque<>();
+  private final transient ArrayDeque<Cell> pool = new ArrayDeque<>();
+
+  /**
+   * @param cx the cell x
+   * @param cy the cell y
+   * @return the packed cell coordinates
+   */
+  static long key(int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+
+  private static int index(long key, int mask) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  @Override
+  public Cell get(int cx, int cy) {
+    return find(table, key(cx, cy));
+  }
+
+  @Override
+  public Cell get(long key) {
+    return find(table, key);
+  }
+
+  @Override
+  public void add(int cx, int cy, Home home, int level) {
+    final long key = key(cx, cy);
+    Cell cell = find(table, key);
+    if (cell == null) cell = create(key);
+    cell.add(home, level);
+
+    if (cell.capacity() > crowded) {
+      crowded = Math.min(cell.capacity(), MAX_RESERVED);
+    }
+  }
+
+  @Override
+  public void remove(Home home, int level) {
+    final Cell cell = home.cells[level];
+    if (cell == null || !cell.remove(home, level) || !cell.queue()) return;
+
+    Cell head;
+    do {
+      head = emptied.get();
+      cell.nextEmptied = head;
+    } while (!emptied.compareAndSet(head, cell));
+  }
+
+  /**
+   * Walks the table instead of probing each cell when the block has more
+   * cells than the table has slots, so a large block over a sparse world
+   * costs no more than the occupied cells
+   */
+  @Override
+  public int forEachWithin(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    float x,
+    float y,
+    float radiusSq,
+    ClientConsumer consumer
+  ) {
+    final Cell[] t = table;
+    if (area(startX, startY, endX, endY) <= t.length) {
+      return CellGrid.super.forEachWithin(
+        startX,
+        startY,
+        endX,
+        endY,
+        x,
+        y,
+        radiusSq,
+        consumer
+      );
+    }
+
+    int visited = 0;
+    for (Cell c : t) {
+      if (inBlock(c, startX, startY, endX, endY)) visited +=
+        c.forEachWithin(x, y, radiusSq, consumer);
+    }
+    return visited;
+  }
+
+  @Override
+  public int count(int startX, int startY, int endX, int endY) {
+    final Cell[] t = table;
+    if (area(startX, startY, endX, endY) <= t.length) {
+      return CellGrid.super.count(startX, startY, endX, endY);
+    }
+
+    int count = 0;
+    for (Cell c : t) {
+      if (inBlock(c, startX, startY, endX, endY)) count += c.size();
+    }
+    return count;
+  }
+
+  private static long area(int startX, int startY, int endX, int endY) {
+    return ((long) endX - startX + 1) * ((long) endY - startY + 1);
+  }
+
+  private static boolean inBlock(
+    Cell c,
+    int startX,
+    int startY,
+    int endX,
+    int endY
+  ) {
+    if (c == null || c == TOMBSTONE) return false;
+
+    final int cx = c.x();
+    final int cy = c.y();
+    return cx >= startX && cx <= endX && cy >= startY && cy <= endY;
+  }
+
+  /**
+   * @return whether no cells are linked, though linked cells may be empty
+   */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public void forEachCell(Consumer<Cell> action) {
+    for (Cell c : table) if (c != null && c != TOMBSTONE) action.accept(c);
+  }
+
+  /**
+   * Unlinks the cells that emptied since the last call and are still empty,
+   * and pools the cells unlinked before the last call
+   */
+  @Override
+  public synchronized void reclaim() {
+    epoch++;
+
+    while (!retired.isEmpty() && retired.peek().retired < epoch - 1) {
+      final Cell cell = retired.poll();
+      // A tick can empty about as many cells as are linked, so the pool is
+      // allowed that many to cover the next tick without allocating
+      if (pool.size() < Math.max(MAX_POOLED, size)) pool.push(cell);
+    }
+
+    final Cell[] t = table;
+    final int mask = t.length - 1;
+    for (Cell cell = emptied.getAndSet(null), next; cell != null; cell = next) {
+      next = cell.nextEmptied;
+      cell.nextEmptied = null;
+      cell.queued = false;
+      if (cell.size() != 0) continue;
+
+      for (int i = index(cell.key, mask); t[i] != null; i = (i + 1) & mask) {
+        if (t[i] != cell) continue;
+
+        t[i] = TOMBSTONE;
+        size--;
+        tombstones++;
+        cell.retired = epoch;
+        retired.add(cell);
+        break;
+      }
+    }
+
+    // Cells linked before the map got this crowded are given the same room
+    // as the reused ones, since the cells that stay linked for long are the
+    // busy ones that would otherwise grow later. Nothing else is using them.
+    if (crowded > reserved) {
+      reserved = crowded;
+      for (Cell c : t) {
+        if (c != null && c != TOMBSTONE) c.reserve(reserved);
+      }
+    }
+
+    // Rehashing here, with no readers, is cheaper than when the table
+    // fills up during a tick, since the old table can be reused
+    if (sparse(t) || (size + tombstones) * 4 > t.length) rehash(true);
+  }
+
+  private synchronized Cell create(long key) {
+    final Cell existing = find(table, key);
+    if (existing != null) return existing;
+
+    if ((size + tombstones + 1) * 2 > table.length) rehash(false);
+
+    final Cell cell = pool.isEmpty() ? new Cell(key, crowded) : pool.pop();
+    cell.reserve(crowded);
+    // Set before the cell is published, see place
+    cell.key = key;
+    place(table, cell);
+    size++;
+    return cell;
+  }
+
+  /**
+   * Copies the live cells into a table sized for them, dropping tombstones.
+   * The replaced table is kept as a spare, but it may still be read by a
+   * query that started before the swap.
+   * @param reuse whether the spare may be written to, which is only safe
+   * when nothing else is using the map
+   */
+  private void rehash(boolean reuse) {
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < (size + 1) * 4) capacity <<= 1;
+    // Only shrink once sparse, so a table that is rehashed every few ticks
+    // keeps its size and the spare can be reused
+    if (!sparse(table)) capacity = Math.max(capacity, table.length);
+
+    final Cell[] next;
+    if (reuse && spare != null && spare.length == capacity) {
+      next = spare;
+      Arrays.fill(next, null);
+    } else next = new Cell[capacity];
+
+    for (Cell c : table) {
+      if (c != null && c != TOMBSTONE) place(next, c);
+    }
+    tombstones = 0;
+    spare = table;
+    table = next;
+  }
+
+  /**
+   * Well below the load a table is grown at, so a table that has just grown
+   * is not shrunk straight back
+   */
+  private boolean sparse(Cell[] t) {
+    return t.length > INITIAL_CAPACITY && size * 16 < t.length;
+  }
+
+  private static Cell find(Cell[] t, long key) {
+    final int mask = t.length - 1;
+    for (int i = index(key, mask);; i = (i + 1) & mask) {
+      final Cell c = (Cell) SLOTS.getAcquire(t, i);
+      if (c == null) return null;
+      if (c != TOMBSTONE && c.key == key) return c;
+    }
+  }
+
+  /**
+   * Puts a cell in the first free slot of its probe chain, which is only
+   * safe when its key is not in the table already. The store releases
+   * everything written to the cell before it, so a lookup never pairs a
+   * pooled cell with the key it had before.
+   */
+  private static void place(Cell[] t, Cell cell) {
+    final int mask = t.length - 1;
+    int i = index(cell.key, mask);
+    while (t[i] != null && t[i] != TOMBSTONE) i = (i + 1) & mask;
+    SLOTS.setRelease(t, i, cell);
+  }
+}
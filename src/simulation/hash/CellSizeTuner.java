@@ -0,0 +1,124 @@
+package simulation.hash;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks the base cell size of a {@link SpatialHash} from what its queries
+ * actually see. Every query reports its radius, the area its stencil covered
+ * and how many clients were in it. From those the tuner estimates the cost of
+ * an average query at nearby cell sizes and suggests a new size when one is
+ * clearly cheaper.
+ */
+final class CellSizeTuner {
+
+  private static final long INTERVAL = 1_000;
+
+  /**
+   * Cost of probing one cell relative to visiting one client
+   */
+  private static final float CELL_COST = 2;
+
+  /**
+   * A new size has to be at least this much cheaper to be worth a rebuild
+   */
+  private static final float MIN_GAIN = 0.2f;
+
+  /**
+   * How many halvings or doublings of the current size are considered
+   */
+  private static final int STEPS = 2;
+
+  private static final float MIN_CELL_SIZE = 1;
+  private static final float MAX_CELL_SIZE = 1 << 12;
+
+  private final int levels;
+  private final int targetCellRadius;
+
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder radii = new LongAdder();
+  private final LongAdder clients = new LongAdder();
+  private final DoubleAdder area = new DoubleAdder();
+  private long preTuneTime = System.currentTimeMillis();
+
+  /**
+   * @param levels the number of levels, each with double the cell size of the
+   * one below
+   * @param targetCellRadius the most cells a query should cover either side of
+   * its own
+   */
+  CellSizeTuner(int levels, int targetCellRadius) {
+    this.levels = levels;
+    this.targetCellRadius = targetCellRadius;
+  }
+
+  /**
+   * Records one query. Safe to call from any thread.
+   * @param radius the query radius
+   * @param cells the number of cells the query probed
+   * @param cellSize the size of the cells it probed
+   * @param visited the number of clients in those cells
+   */
+  void record(short radius, int cells, float cellSize, int visited) {
+    queries.increment();
+    radii.add(radius);
+    clients.add(visited);
+    area.add(cells * cellSize * cellSize);
+  }
+
+  /**
+   * Suggests a base cell size from the queries recorded since the last
+   * suggestion. Does nothing more than once per second.
+   * @param current the current base cell size
+   * @return the suggested base cell size, which is {@code current} unless a
+   * rebuild is worth it
+   */
+  float tune(float current) {
+    if (System.currentTimeMillis() - preTuneTime < INTERVAL) return current;
+    preTuneTime = System.currentTimeMillis();
+
+    final long n = queries.sumThenReset();
+    final long radiusSum = radii.sumThenReset();
+    final long visited = clients.sumThenReset();
+    final double covered = area.sumThenReset();
+    if (n == 0 || covered == 0) return current;
+
+    final float radius = (float) radiusSum / n;
+    final float density = (float) (visited / covered);
+
+    float best = current;
+    final float currentCost = cost(current, radius, density);
+    float bestCost = currentCost;
+
+    for (int step = -STEPS; step <= STEPS; step++) {
+      final float size = current * (float) Math.pow(2, step);
+      if (size < MIN_CELL_SIZE || size > MAX_CELL_SIZE) continue;
+
+      final float cost = cost(size, radius, density);
+      if (cost < bestCost) {
+        best = size;
+        bestCost = cost;
+      }
+    }
+
+    return bestCost < currentCost * (1 - MIN_GAIN) ? best : current;
+  }
+
+  /**
+   * @return the estimated cost of one query of {@code radius} when the base
+   * cell size is {@code base}
+   */
+  private float cost(float base, float radius, float density) {
+    float cellSize = base;
+    for (
+      int level = 0;
+      level < levels - 1 && radius > cellSize * targetCellRadius;
+      level++
+    ) cellSize *= 2;
+
+    // The stencil spans 2r / s + 1 cells on average along each axis
+    final float side = 2 * radius + cellSize;
+    final float cells = (side / cellSize) * (side / cellSize);
+    return cells * CELL_COST + density * side * side;
+  }
+}
@@ -12,4 +12,22 @@ public interface Client extends Serializable {
    * @return the center y of the client
    */
   public float getY();
+
+  /**
+   * @return the radius of the client, for queries that test its extent
+   * rather than only its centre
+   */
+  public default short getRadius() {
+    return 0;
+  }
+
+  /**
+   * @return a small number that no other client in the same index has at the
+   * same time, which lets an index keep what it knows about the client in an
+   * array and reuse it for the next client with the number, or {@code -1} if
+   * the client has none
+   */
+  public default int getId() {
+    return -1;
+  }
 }
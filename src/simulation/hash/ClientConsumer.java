@@ -0,0 +1,9 @@
+package simulation.hash;
+
+@FunctionalInterface
+public interface ClientConsumer {
+  /**
+   * @param client the client found by the query
+   */
+  public void accept(Client client);
+}
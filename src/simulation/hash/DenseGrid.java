@@ -0,0 +1,197 @@
+package simulation.hash;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Cells of a bounded world kept in a flat array indexed by row and column,
+ * so finding a cell is two comparisons and a multiply. Clients outside the
+ * world go to a small {@link CellMap}. Cells in the array are created the
+ * first time they are used and kept after that, since the array bounds how
+ * many there can be.
+ * <p>
+ * Each cell also has a client count and a bit in an occupancy bitmap, one
+ * word per 64 cells of a row, so block queries skip empty runs of cells a
+ * word at a time. A bit is set as soon as its cell gains a client and only
+ * cleared by {@link #reclaim() reclaim}, so a set bit means the cell may be
+ * occupied and a clear bit means it is empty.
+ */
+final class DenseGrid implements CellGrid {
+
+  private static final long serialVersionUID = 5172938465012873L;
+
+  private final int columns;
+  private final int rows;
+  private final int words;
+  private final CellMap.Cell[] cells;
+  private final AtomicIntegerArray counts;
+  private final AtomicLongArray occupied;
+  private final CellMap overflow = new CellMap();
+
+  /**
+   * @param width the width of the world
+   * @param height the height of the world
+   * @param cellSize the width and height of a cell
+   */
+  DenseGrid(int width, int height, float cellSize) {
+    columns = Math.max(0, (int) Math.ceil(width / cellSize));
+    rows = Math.max(0, (int) Math.ceil(height / cellSize));
+    words = (columns + 63) >>> 6;
+    cells = new CellMap.Cell[columns * rows];
+    counts = new AtomicIntegerArray(cells.length);
+    occupied = new AtomicLongArray(words * rows);
+  }
+
+  private int index(int cx, int cy) {
+    return cx >= 0 && cy >= 0 && cx < columns && cy < rows
+      ? cy * columns + cx
+      : -1;
+  }
+
+  private boolean inWorld(int startX, int startY, int endX, int endY) {
+    return startX >= 0 && startY >= 0 && endX < columns && endY < rows;
+  }
+
+  @Override
+  public CellMap.Cell get(int cx, int cy) {
+    final int i = index(cx, cy);
+    return i < 0 ? overflow.get(cx, cy) : cells[i];
+  }
+
+  @Override
+  public void add(int cx, int cy, Home home, int level) {
+    final int i = index(cx, cy);
+    if (i < 0) {
+      overflow.add(cx, cy, home, level);
+      return;
+    }
+
+    final CellMap.Cell cell = cells[i] == null ? create(i, cx, cy) : cells[i];
+    cell.add(home, level);
+    counts.incrementAndGet(i);
+    final int w = cy * words + (cx >>> 6);
+    final long bit = 1L << cx;
+    if ((occupied.get(w) & bit) == 0) {
+      occupied.getAndAccumulate(w, bit, (a, b) -> a | b);
+    }
+  }
+
+  @Override
+  public void remove(Home home, int level) {
+    final long key = home.keys[level];
+    final int i = index((int) (key >> 32), (int) key);
+    if (i < 0) {
+      overflow.remove(home, level);
+    } else if (
+      cells[i] != null && cells[i].remove(home, level)
+    ) counts.decrementAndGet(i);
+  }
+
+  @Override
+  public int forEachWithin(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    float x,
+    float y,
+    float radiusSq,
+    ClientConsumer consumer
+  ) {
+    int visited = 0;
+    if (!overflow.isEmpty() && !inWorld(startX, startY, endX, endY)) {
+      visited +=
+        overflow.forEachWithin(
+          startX,
+          startY,
+          endX,
+          endY,
+          x,
+          y,
+          radiusSq,
+          consumer
+        );
+    }
+
+    final int x0 = Math.max(0, startX);
+    final int x1 = Math.min(columns - 1, endX);
+    for (int cy = Math.max(0, startY); cy <= Math.min(rows - 1, endY); cy++) {
+      for (int w = x0 >>> 6; x0 <= x1 && w <= x1 >>> 6; w++) {
+        long bits = occupied.get(cy * words + w) & mask(w, x0, x1);
+        while (bits != 0) {
+          final int cx = (w << 6) + Long.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+
+          visited +=
+            cells[cy * columns + cx].forEachWithin(x, y, radiusSq, consumer);
+        }
+      }
+    }
+    return visited;
+  }
+
+  @Override
+  public int count(int startX, int startY, int endX, int endY) {
+    int count = 0;
+    if (!overflow.isEmpty() && !inWorld(startX, startY, endX, endY)) {
+      count += overflow.count(startX, startY, endX, endY);
+    }
+
+    final int x0 = Math.max(0, startX);
+    final int x1 = Math.min(columns - 1, endX);
+    for (int cy = Math.max(0, startY); cy <= Math.min(rows - 1, endY); cy++) {
+      for (int w = x0 >>> 6; x0 <= x1 && w <= x1 >>> 6; w++) {
+        long bits = occupied.get(cy * words + w) & mask(w, x0, x1);
+        while (bits != 0) {
+          final int cx = (w << 6) + Long.numberOfTrailingZeros(bits);
+          bits &= bits - 1;
+          count += counts.get(cy * columns + cx);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the bits of word {@code w} that are columns {@code x0} to
+   * {@code x1}
+   */
+  private static long mask(int w, int x0, int x1) {
+    long mask = -1L;
+    if (w == x0 >>> 6) mask &= -1L << x0;
+    if (w == x1 >>> 6) mask &= -1L >>> (63 - (x1 & 63));
+    return mask;
+  }
+
+  @Override
+  public void forEachCell(Consumer<CellMap.Cell> action) {
+    for (CellMap.Cell cell : cells) if (cell != null) action.accept(cell);
+    overflow.forEachCell(action);
+  }
+
+  /**
+   * Clears the bits of cells that have emptied
+   */
+  @Override
+  public void reclaim() {
+    for (int w = 0; w < occupied.length(); w++) {
+      final long bits = occupied.get(w);
+      if (bits == 0) continue;
+
+      final int first = (w / words) * columns + ((w % words) << 6);
+      long kept = bits;
+      for (long b = bits; b != 0; b &= b - 1) {
+        final int bit = Long.numberOfTrailingZeros(b);
+        if (counts.get(first + bit) == 0) kept &= ~(1L << bit);
+      }
+      if (kept != bits) occupied.set(w, kept);
+    }
+    overflow.reclaim();
+  }
+
+  private synchronized CellMap.Cell create(int i, int cx, int cy) {
+    if (cells[i] == null) cells[i] = new CellMap.Cell(CellMap.key(cx, cy));
+    return cells[i];
+  }
+}
@@ -0,0 +1,42 @@
+package simulation.hash;
+
+import java.io.Serializable;
+
+/**
+ * Where a client is in an incremental {@link SpatialHash}: on every level,
+ * the cell holding it and its position in that cell. Cells keep the
+ * positions up to date as they move clients around, so a client is found in
+ * its cell without searching it.
+ */
+final class Home implements Serializable {
+
+  private static final long serialVersionUID = 6290417385120946L;
+
+  /**
+   * The client, or {@code null} while the home waits for the next client with
+   * its id
+   */
+  Client client;
+  /** The key of the cell on each level, while the client is in one */
+  final long[] keys;
+  /** The cell on each level, or {@code null} if the client is in none */
+  final CellMap.Cell[] cells;
+  /** The position of the client in the cell on each level */
+  final int[] slots;
+  /**
+   * Moves on whenever the client is added, staged or removed, so work staged
+   * before that can tell it is out of date
+   */
+  int stamp;
+
+  /**
+   * @param client the client
+   * @param levels the number of levels in the hash
+   */
+  Home(Client client, int levels) {
+    this.client = client;
+    keys = new long[levels];
+    cells = new CellMap.Cell[levels];
+    slots = new int[levels];
+  }
+}
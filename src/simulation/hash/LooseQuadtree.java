@@ -0,0 +1,563 @@
+package simulation.hash;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Quadtree over the world that splits a node once it holds more than
+ * {@link #CAPACITY} clients, so dense clumps get small nodes and empty space
+ * costs nothing. Nodes are loose: a client stays in its node while its centre
+ * is within half a node width outside it, so clients that move a little do
+ * not have to be moved between nodes. Clients outside the world are kept in
+ * the root.
+ */
+public final class LooseQuadtree implements SpatialIndex {
+
+  private static final long serialVersionUID = 2938475610293847L;
+
+  private static final int CAPACITY = 8;
+  private static final int MAX_DEPTH = 12;
+  private static final int MIN_SIZE = 256;
+
+  private static final class Node implements Serializable {
+
+    private static final long serialVersionUID = 6120394857120398L;
+
+    private final Node parent;
+    private final float x;
+    private final float y;
+    private final float size;
+    private final int depth;
+    private Node[] children;
+    private Client[] clients = new Client[CAPACITY];
+    private float[] xs = new float[CAPACITY];
+    private float[] ys = new float[CAPACITY];
+    private int count;
+
+    private Node(Node parent, float x, float y, float size, int depth) {
+      this.parent = parent;
+      this.x = x;
+      this.y = y;
+      this.size = size;
+      this.depth = depth;
+    }
+
+    private boolean contains(float px, float py) {
+      return px >= x && py >= y && px < x + size && py < y + size;
+    }
+
+    /**
+     * @return whether the loose bounds are within {@code d} of a box
+     */
+    private boolean near(float x0, float y0, float x1, float y1, float d) {
+      // The root also holds clients outside the world
+      if (parent == null) return true;
+
+      final float slack = size / 2 + d;
+      return (
+        x - slack <= x1 &&
+        x + size + slack >= x0 &&
+        y - slack <= y1 &&
+        y + size + slack >= y0
+      );
+    }
+
+    /**
+     * @return the squared distance from a point to the loose bounds
+     */
+    private float distanceSq(float px, float py) {
+      if (parent == null) return 0;
+
+      final float slack = size / 2;
+      final float dx = Math.max(
+        0,
+        Math.max(x - slack - px, px - (x + size + slack))
+      );
+      final float dy = Math.max(
+        0,
+        Math.max(y - slack - py, py - (y + size + slack))
+      );
+      return dx * dx + dy * dy;
+    }
+
+    /**
+     * Slab test of a segment against the loose bounds grown by {@code pad}
+     * @return whether the segment passes through them
+     */
+    private boolean crosses(
+      float x0,
+      float y0,
+      float x1,
+      float y1,
+      float pad
+    ) {
+      if (parent == null) return true;
+
+      final float slack = size / 2 + pad;
+      float enter = 0;
+      float exit = 1;
+      for (int axis = 0; axis < 2; axis++) {
+        final float start = axis == 0 ? x0 : y0;
+        final float d = (axis == 0 ? x1 : y1) - start;
+        final float min = (axis == 0 ? x : y) - slack;
+        final float max = (axis == 0 ? x : y) + size + slack;
+
+        if (d == 0) {
+          if (start < min || start > max) return false;
+          continue;
+        }
+
+        float t0 = (min - start) / d;
+        float t1 = (max - start) / d;
+        if (t0 > t1) {
+          final float t = t0;
+          t0 = t1;
+          t1 = t;
+        }
+        enter = Math.max(enter, t0);
+        exit = Math.min(exit, t1);
+        if (enter > exit) return false;
+      }
+      return true;
+    }
+
+    private boolean looselyContains(float px, float py) {
+      if (parent == null) return true;
+
+      final float slack = size / 2;
+      return (
+        px >= x - slack &&
+        py >= y - slack &&
+        px < x + size + slack &&
+        py < y + size + slack
+      );
+    }
+
+    private synchronized void add(Client client) {
+      if (count == clients.length) {
+        clients = Arrays.copyOf(clients, count * 2);
+        xs = Arrays.copyOf(xs, count * 2);
+        ys = Arrays.copyOf(ys, count * 2);
+      }
+      clients[count] = client;
+      xs[count] = client.getX();
+      ys[count++] = client.getY();
+    }
+
+    private synchronized boolean remove(Client client) {
+      for (int i = 0; i < count; i++) {
+        if (clients[i] != client) continue;
+
+        count--;
+        clients[i] = clients[count];
+        xs[i] = xs[count];
+        ys[i] = ys[count];
+        clients[count] = null;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Copies the position of a client that can stay in this node, which it
+     * can not once the node has split
+     * @return whether the client stayed
+     */
+    private synchronized boolean moveWithin(Client client) {
+      final float px = client.getX();
+      final float py = client.getY();
+      if (children != null || !looselyContains(px, py)) return false;
+
+      for (int i = 0; i < count; i++) {
+        if (clients[i] != client) continue;
+
+        xs[i] = px;
+        ys[i] = py;
+        return true;
+      }
+      return false;
+    }
+
+    private Node child(float px, float py) {
+      final float half = size / 2;
+      final int i = (px < x + half ? 0 : 1) + (py < y + half ? 0 : 2);
+      return children[i];
+    }
+
+    private void split() {
+      final float half = size / 2;
+      children =
+        new Node[] {
+          new Node(this, x, y, half, depth + 1),
+          new Node(this, x + half, y, half, depth + 1),
+          new Node(this, x, y + half, half, depth + 1),
+          new Node(this, x + half, y + half, half, depth + 1),
+        };
+    }
+
+    private boolean isEmptyLeaf() {
+      return children == null && count == 0;
+    }
+  }
+
+  private final Map<Client, Node> nodes = new ConcurrentHashMap<>();
+  private final transient Queue<Client> staged = new ConcurrentLinkedQueue<>();
+  private Node root = new Node(null, 0, 0, MIN_SIZE, 0);
+
+  @Override
+  public synchronized void insert(Client client) {
+    final Node old = nodes.remove(client);
+    if (old != null) detach(old, client);
+
+    place(root, client);
+  }
+
+  @Override
+  public synchronized void remove(Client client) {
+    final Node node = nodes.remove(client);
+    if (node != null) detach(node, client);
+  }
+
+  /**
+   * Most clients stay inside their node's loose bounds, so that is checked
+   * while only holding the node
+   */
+  @Override
+  public void update(Client client) {
+    final Node old = nodes.get(client);
+    if (old != null && old.moveWithin(client)) return;
+
+    synchronized (this) {
+      final Node node = nodes.get(client);
+      if (node != null && node.moveWithin(client)) return;
+
+      if (node != null) {
+        nodes.remove(client);
+        detach(node, client);
+      }
+      place(root, client);
+    }
+  }
+
+  @Override
+  public void stage(Client client) {
+    staged.add(client);
+  }
+
+  @Override
+  public synchronized void flushStaged() {
+    Client client;
+    while ((client = staged.poll()) != null) insert(client);
+  }
+
+  /**
+   * Grows the root to the smallest power of two that covers the world and
+   * re-adds every client
+   */
+  @Override
+  public synchronized void resize(short width, short height) {
+    float size = MIN_SIZE;
+    while (size < width || size < height) size *= 2;
+    if (size == root.size) return;
+
+    root = new Node(null, 0, 0, size, 0);
+    nodes.keySet().forEach(c -> place(root, c));
+  }
+
+  @Override
+  public void forEachNear(
+    float x,
+    float y,
+    short radius,
+    ClientConsumer consumer
+  ) {
+    if (radius == 0) return;
+    forEachNear(root, x, y, radius, consumer);
+  }
+
+  private void forEachNear(
+    Node node,
+    float x,
+    float y,
+    short radius,
+    ClientConsumer consumer
+  ) {
+    if (!node.near(x - radius, y - radius, x + radius, y + radius, 0)) return;
+
+    // Tested against the positions the node holds, without touching clients
+    // that are out of range
+    final float radiusSq = (float) radius * radius;
+    for (int i = 0; i < node.count; i++) {
+      final float dx = node.xs[i] - x;
+      final float dy = node.ys[i] - y;
+      if (dx * dx + dy * dy <= radiusSq) consumer.accept(node.clients[i]);
+    }
+
+    if (node.children == null) return;
+    for (Node child : node.children) {
+      forEachNear(child, x, y, radius, consumer);
+    }
+  }
+
+  @Override
+  public void forEachInBox(
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    ClientConsumer consumer
+  ) {
+    forEachInBox(root, minX, minY, maxX, maxY, consumer);
+  }
+
+  private void forEachInBox(
+    Node node,
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    ClientConsumer consumer
+  ) {
+    if (!node.near(minX, minY, maxX, maxY, 0)) return;
+
+    for (int i = 0; i < node.count; i++) {
+      final Client c = node.clients[i];
+      final float x = c.getX();
+      final float y = c.getY();
+      if (x >= minX && x <= maxX && y >= minY && y <= maxY) consumer.accept(c);
+    }
+
+    if (node.children == null) return;
+    for (Node child : node.children) {
+      forEachInBox(child, minX, minY, maxX, maxY, consumer);
+    }
+  }
+
+  @Override
+  public int countInBox(float minX, float minY, float maxX, float maxY) {
+    final int[] count = { 0 };
+    forEachInBox(root, minX, minY, maxX, maxY, c -> count[0]++);
+    return count[0];
+  }
+
+  /**
+   * Descends into the child holding the point first, then its siblings, so
+   * the furthest found so far shrinks quickly and whole subtrees further away
+   * than it are skipped
+   */
+  @Override
+  public void nearest(float x, float y, int k, Client ignore, Nearest out) {
+    out.reset(x, y, k, ignore);
+    if (k > 0) nearest(root, out);
+    out.finish();
+  }
+
+  private void nearest(Node node, Nearest out) {
+    if (out.isFull() && node.distanceSq(out.x, out.y) > out.worstSq()) return;
+
+    for (int i = 0; i < node.count; i++) out.accept(node.clients[i]);
+
+    if (node.children == null) return;
+    final Node first = node.contains(out.x, out.y)
+      ? node.child(out.x, out.y)
+      : null;
+    if (first != null) nearest(first, out);
+    for (Node child : node.children) if (child != first) nearest(child, out);
+  }
+
+  @Override
+  public void traceSegment(
+    float x0,
+    float y0,
+    float x1,
+    float y1,
+    short radius,
+    SegmentHits out
+  ) {
+    out.reset(x0, y0, x1, y1);
+    traceSegment(root, x0, y0, x1, y1, radius, out);
+    out.finish();
+  }
+
+  private void traceSegment(
+    Node node,
+    float x0,
+    float y0,
+    float x1,
+    float y1,
+    short radius,
+    SegmentHits out
+  ) {
+    if (!node.crosses(x0, y0, x1, y1, radius)) return;
+
+    for (int i = 0; i < node.count; i++) out.accept(node.clients[i]);
+
+    if (node.children == null) return;
+    for (Node child : node.children) {
+      traceSegment(child, x0, y0, x1, y1, radius, out);
+    }
+  }
+
+  /**
+   * Walks the tree once, pairing each node's clients with themselves and
+   * with everything below them, and each pair of sibling subtrees with each
+   * other, skipping anything whose loose bounds are further apart than
+   * {@code cutoff}
+   */
+  @Override
+  public void forEachPair(float cutoff, PairConsumer consumer) {
+    selfPairs(root, cutoff, cutoff * cutoff, consumer);
+  }
+
+  private void selfPairs(
+    Node node,
+    float cutoff,
+    float cutoffSq,
+    PairConsumer consumer
+  ) {
+    for (int i = 0; i < node.count; i++) {
+      for (int j = i + 1; j < node.count; j++) {
+        SortedGrid.pair(node.clients[i], node.clients[j], cutoffSq, consumer);
+      }
+    }
+
+    if (node.children == null) return;
+
+    for (Node child : node.children) {
+      clientPairs(node, child, cutoff, cutoffSq, consumer);
+    }
+    for (int i = 0; i < node.children.length; i++) {
+      selfPairs(node.children[i], cutoff, cutoffSq, consumer);
+      for (int j = i + 1; j < node.children.length; j++) {
+        subtreePairs(
+          node.children[i],
+          node.children[j],
+          cutoff,
+          cutoffSq,
+          consumer
+        );
+      }
+    }
+  }
+
+  /**
+   * Pairs the clients of {@code a} with every client in the subtree of
+   * {@code b}
+   */
+  private void clientPairs(
+    Node a,
+    Node b,
+    float cutoff,
+    float cutoffSq,
+    PairConsumer consumer
+  ) {
+    if (a.count == 0 || !overlaps(a, b, cutoff)) return;
+
+    for (int i = 0; i < a.count; i++) {
+      for (int j = 0; j < b.count; j++) {
+        SortedGrid.pair(a.clients[i], b.clients[j], cutoffSq, consumer);
+      }
+    }
+
+    if (b.children == null) return;
+    for (Node child : b.children) {
+      clientPairs(a, child, cutoff, cutoffSq, consumer);
+    }
+  }
+
+  /**
+   * Pairs every client in the subtree of {@code a} with every client in the
+   * subtree of {@code b}
+   */
+  private void subtreePairs(
+    Node a,
+    Node b,
+    float cutoff,
+    float cutoffSq,
+    PairConsumer consumer
+  ) {
+    if (!overlaps(a, b, cutoff)) return;
+
+    clientPairs(a, b, cutoff, cutoffSq, consumer);
+
+    if (a.children == null) return;
+    for (Node child : a.children) {
+      subtreePairs(child, b, cutoff, cutoffSq, consumer);
+    }
+  }
+
+  private static boolean overlaps(Node a, Node b, float cutoff) {
+    if (b.parent == null) return true;
+
+    final float slack = b.size / 2;
+    return a.near(
+      b.x - slack,
+      b.y - slack,
+      b.x + b.size + slack,
+      b.y + b.size + slack,
+      cutoff
+    );
+  }
+
+  private void place(Node node, Client client) {
+    final float x = client.getX();
+    final float y = client.getY();
+
+    while (node.children != null && node.contains(x, y)) {
+      node = node.child(x, y);
+    }
+
+    node.add(client);
+    nodes.put(client, node);
+
+    if (
+      node.children == null &&
+      node.count > CAPACITY &&
+      node.depth < MAX_DEPTH
+    ) split(node);
+  }
+
+  /**
+   * Moves the clients of a full leaf that are inside it down into new
+   * children, leaving the ones outside the world in the root. Holds the node
+   * so no update sees it half split.
+   */
+  private void split(Node node) {
+    synchronized (node) {
+      node.split();
+
+      final Client[] old = Arrays.copyOf(node.clients, node.count);
+      node.count = 0;
+      Arrays.fill(node.clients, null);
+
+      for (Client c : old) {
+        if (node.contains(c.getX(), c.getY())) {
+          final Node child = node.child(c.getX(), c.getY());
+          child.add(c);
+          nodes.put(c, child);
+        } else node.add(c);
+      }
+    }
+  }
+
+  /**
+   * Removes a client from a node and collapses any parents left with only
+   * empty leaves
+   */
+  private void detach(Node node, Client client) {
+    node.remove(client);
+
+    Node parent = node.parent;
+    while (parent != null && parent.count == 0) {
+      for (Node child : parent.children) {
+        if (!child.isEmptyLeaf()) return;
+      }
+      parent.children = null;
+      parent = parent.parent;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package simulation.hash;
+
+import java.util.Arrays;
+
+/**
+ * Reusable result buffer for {@link SpatialIndex#nearest(float, float, int,
+ * Client, Nearest) nearest} queries. While a query runs it is a max-heap of
+ * the closest clients seen so far, afterwards the results are sorted from
+ * closest to furthest. Not safe to share between threads.
+ */
+public final class Nearest implements ClientConsumer {
+
+  private Client[] clients = new Client[0];
+  private float[] distancesSq = new float[0];
+  private int size;
+  private int k;
+  private int seen;
+  private Client ignore;
+
+  float x;
+  float y;
+
+  /**
+   * @return the number of clients found, at most the k asked for
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i the rank of the client, {@code 0} is the closest
+   * @return the client
+   */
+  public Client get(int i) {
+    return clients[i];
+  }
+
+  /**
+   * @param i the rank of the client, {@code 0} is the closest
+   * @return the squared distance from the query point to the client
+   */
+  public float distanceSq(int i) {
+    return distancesSq[i];
+  }
+
+  void reset(float x, float y, int k, Client ignore) {
+    Arrays.fill(clients, 0, size, null);
+    this.x = x;
+    this.y = y;
+    this.k = Math.max(0, k);
+    this.ignore = ignore;
+    size = 0;
+    seen = 0;
+
+    if (clients.length < this.k) {
+      clients = new Client[this.k];
+      distancesSq = new float[this.k];
+    }
+  }
+
+  /**
+   * @return the number of clients offered since the last reset
+   */
+  int seen() {
+    return seen;
+  }
+
+  boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * @return the squared distance to the furthest client kept, only
+   * meaningful once {@link #isFull() full}
+   */
+  float worstSq() {
+    return size == 0 ? Float.POSITIVE_INFINITY : distancesSq[0];
+  }
+
+  @Override
+  public void accept(Client client) {
+    seen++;
+    if (client == ignore || k == 0) return;
+
+    final float dx = client.getX() - x;
+    final float dy = client.getY() - y;
+    final float dSq = dx * dx + dy * dy;
+
+    if (size < k) {
+      clients[size] = client;
+      distancesSq[size] = dSq;
+      siftUp(size++);
+    } else if (dSq < distancesSq[0]) {
+      clients[0] = client;
+      distancesSq[0] = dSq;
+      siftDown(0, size);
+    }
+  }
+
+  /**
+   * Sorts the heap in place from closest to furthest
+   */
+  void finish() {
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      final int parent = (i - 1) >> 1;
+      if (distancesSq[parent] >= distancesSq[i]) return;
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i, int end) {
+    while (true) {
+      final int left = 2 * i + 1;
+      if (left >= end) return;
+
+      final int right = left + 1;
+      final int child = right < end && distancesSq[right] > distancesSq[left]
+        ? right
+        : left;
+      if (distancesSq[i] >= distancesSq[child]) return;
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  private void swap(int a, int b) {
+    final Client c = clients[a];
+    clients[a] = clients[b];
+    clients[b] = c;
+    final float d = distancesSq[a];
+    distancesSq[a] = distancesSq[b];
+    distancesSq[b] = d;
+  }
+}
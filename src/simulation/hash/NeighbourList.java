@@ -0,0 +1,230 @@
+package simulation.hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Verlet neighbour lists over a {@link SpatialIndex}. Lists are built with an
+ * extra skin distance and reused until some client has moved more than half
+ * the skin since the last build, so most ticks need no hash queries at all.
+ */
+public final class NeighbourList {
+
+  private static final class Entry {
+
+    private final Client client;
+    private final float x;
+    private final float y;
+    private Entry[] near;
+    private int numNear;
+    private short nearRadius;
+    private boolean pending;
+    private volatile boolean removed;
+
+    private Entry(Client client) {
+      this.client = client;
+      x = client.getX();
+      y = client.getY();
+    }
+
+    private void addNear(Entry e) {
+      if (numNear == near.length) near =
+        Arrays.copyOf(near, Math.max(4, numNear * 2));
+      near[numNear++] = e;
+    }
+  }
+
+  private final SpatialIndex index;
+  private final float skin;
+  private final Map<Client, Entry> entries = new ConcurrentHashMap<>();
+  private final List<Entry> pending = new ArrayList<>();
+
+  private Entry[] pairs = new Entry[0];
+  private int numPairs;
+  private float cutoff = -1;
+  private volatile short maxNearRadius;
+  private long rebuilds;
+
+  /**
+   * @param index the index to build the lists from
+   * @param skin the extra distance the lists are built with
+   */
+  public NeighbourList(SpatialIndex index, float skin) {
+    this.index = index;
+    this.skin = skin;
+  }
+
+  /**
+   * @return the number of times the lists have been rebuilt
+   */
+  public long getRebuilds() {
+    return rebuilds;
+  }
+
+  /**
+   * Rebuilds every list if a client has moved more than half the skin since
+   * the last build, otherwise only adds the clients that are new. The hash
+   * must be up to date and nothing else may use the lists while this runs.
+   * @param clients every client that should be in the lists
+   * @param cutoff the maximum distance between the centres of a pair
+   */
+  public void refresh(Collection<? extends Client> clients, float cutoff) {
+    final float limitSq = skin * skin / 4;
+    boolean rebuild = cutoff != this.cutoff;
+    pending.clear();
+
+    for (Client c : clients) {
+      final Entry e = entries.get(c);
+      if (e == null) {
+        pending.add(new Entry(c));
+        continue;
+      }
+
+      final float dx = c.getX() - e.x;
+      final float dy = c.getY() - e.y;
+      if (dx * dx + dy * dy > limitSq) {
+        rebuild = true;
+        break;
+      }
+    }
+
+    if (rebuild) rebuild(clients, cutoff); else addPending();
+  }
+
+  /**
+   * Calls {@code consumer} for every listed client within {@code radius} of
+   * {@code client}
+   * @param client the client to search around
+   * @param radius the distance from the client to search
+   * @param consumer the consumer to pass each client to
+   */
+  public void forEachNear(
+    Client client,
+    short radius,
+    ClientConsumer consumer
+  ) {
+    final Entry e = entries.get(client);
+    if (e == null || radius == 0) return;
+
+    if (e.near == null || e.nearRadius < radius) buildNear(e, radius);
+
+    final float x = client.getX();
+    final float y = client.getY();
+    final float radiusSq = radius * radius;
+
+    for (int i = 0; i < e.numNear; i++) {
+      final Entry o = e.near[i];
+      if (o.removed) continue;
+
+      final float dx = o.client.getX() - x;
+      final float dy = o.client.getY() - y;
+      if (dx * dx + dy * dy <= radiusSq) consumer.accept(o.client);
+    }
+  }
+
+  /**
+   * Calls {@code consumer} once for every listed pair that is within the
+   * cutoff given to {@link #refresh(Collection, float) refresh}
+   * @param consumer the consumer to pass each pair to
+   */
+  public void forEachPair(PairConsumer consumer) {
+    final float cutoffSq = cutoff * cutoff;
+    for (int i = 0; i < numPairs * 2; i += 2) {
+      final Entry a = pairs[i];
+      final Entry b = pairs[i + 1];
+      if (a.removed || b.removed) continue;
+      SortedGrid.pair(a.client, b.client, cutoffSq, consumer);
+    }
+  }
+
+  public void removeClient(Client client) {
+    final Entry e = entries.remove(client);
+    if (e != null) e.removed = true;
+  }
+
+  private void rebuild(Collection<? extends Client> clients, float cutoff) {
+    this.cutoff = cutoff;
+    entries.clear();
+    numPairs = 0;
+    maxNearRadius = 0;
+    rebuilds++;
+
+    for (Client c : clients) entries.put(c, new Entry(c));
+    index.forEachPair(
+      cutoff + skin,
+      (a, b) -> {
+        final Entry ea = entries.get(a);
+        final Entry eb = entries.get(b);
+        if (ea != null && eb != null) addPair(ea, eb);
+      }
+    );
+  }
+
+  private void addPending() {
+    if (pending.isEmpty()) return;
+
+    pending.forEach(e -> {
+      e.pending = true;
+      entries.put(e.client, e);
+    });
+
+    final short pairRadius = (short) Math.ceil(cutoff + skin);
+    final short reach = (short) Math.max(
+      pairRadius,
+      Math.ceil(maxNearRadius + skin)
+    );
+
+    for (Entry e : pending) {
+      final float x = e.client.getX();
+      final float y = e.client.getY();
+
+      for (Client c : index.findNear(e.client, reach)) {
+        final Entry o = entries.get(c);
+        if (o == null || o == e) continue;
+
+        final float dx = c.getX() - x;
+        final float dy = c.getY() - y;
+        final float dSq = dx * dx + dy * dy;
+
+        // A pair between two new clients is added by whichever comes second
+        if (!o.pending && dSq <= pairRadius * pairRadius) addPair(e, o);
+
+        final float r = o.nearRadius + skin;
+        if (o.near != null && dSq <= r * r) o.addNear(e);
+      }
+
+      e.pending = false;
+    }
+  }
+
+  private void buildNear(Entry e, short radius) {
+    final Collection<Client> found = index.findNear(
+      e.client,
+      (short) Math.ceil(radius + skin)
+    );
+
+    e.near = new Entry[found.size()];
+    e.numNear = 0;
+    for (Client c : found) {
+      final Entry o = entries.get(c);
+      if (o != null) e.near[e.numNear++] = o;
+    }
+    e.nearRadius = radius;
+
+    synchronized (this) {
+      if (radius > maxNearRadius) maxNearRadius = radius;
+    }
+  }
+
+  private void addPair(Entry a, Entry b) {
+    if (numPairs * 2 == pairs.length) pairs =
+      Arrays.copyOf(pairs, Math.max(64, pairs.length * 2));
+    pairs[numPairs * 2] = a;
+    pairs[numPairs * 2 + 1] = b;
+    numPairs++;
+  }
+}
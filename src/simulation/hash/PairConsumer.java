@@ -0,0 +1,10 @@
+package simulation.hash;
+
+@FunctionalInterface
+public interface PairConsumer {
+  /**
+   * @param a the first client of the pair
+   * @param b the second client of the pair
+   */
+  public void accept(Client a, Client b);
+}
@@ -0,0 +1,105 @@
+package simulation.hash;
+
+import java.util.Arrays;
+
+/**
+ * Reusable result buffer for {@link SpatialIndex#traceSegment(float, float,
+ * float, float, short, SegmentHits) traceSegment}. Holds the clients whose
+ * radius overlaps a segment, sorted by how far along the segment they are
+ * first touched. Not safe to share between threads.
+ */
+public final class SegmentHits implements ClientConsumer {
+
+  private Client[] clients = new Client[16];
+  private float[] entries = new float[16];
+  private int size;
+
+  private float x0;
+  private float y0;
+  private float dx;
+  private float dy;
+
+  /**
+   * @return the number of clients hit
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i the order of the hit, {@code 0} is the first along the segment
+   * @return the client
+   */
+  public Client get(int i) {
+    return clients[i];
+  }
+
+  /**
+   * @param i the order of the hit, {@code 0} is the first along the segment
+   * @return how far along the segment the client is first touched, from
+   * {@code 0} at the start to {@code 1} at the end
+   */
+  public float entry(int i) {
+    return entries[i];
+  }
+
+  void reset(float x0, float y0, float x1, float y1) {
+    Arrays.fill(clients, 0, size, null);
+    size = 0;
+    this.x0 = x0;
+    this.y0 = y0;
+    dx = x1 - x0;
+    dy = y1 - y0;
+  }
+
+  /**
+   * Keeps the client if its circle overlaps the segment
+   */
+  @Override
+  public void accept(Client client) {
+    final float r = client.getRadius();
+    final float fx = x0 - client.getX();
+    final float fy = y0 - client.getY();
+    final float c = fx * fx + fy * fy - r * r;
+
+    float t = 0;
+    if (c > 0) {
+      final float a = dx * dx + dy * dy;
+      if (a == 0) return;
+
+      final float b = fx * dx + fy * dy;
+      final float discriminant = b * b - a * c;
+      if (discriminant < 0) return;
+
+      // Starting outside, so both crossings are behind or both are ahead
+      t = (-b - (float) Math.sqrt(discriminant)) / a;
+      if (t < 0 || t > 1) return;
+    }
+
+    if (size == clients.length) {
+      clients = Arrays.copyOf(clients, size * 2);
+      entries = Arrays.copyOf(entries, size * 2);
+    }
+    clients[size] = client;
+    entries[size++] = t;
+  }
+
+  /**
+   * Sorts the hits along the segment. Indexes find them roughly in order, so
+   * an insertion sort only moves each a short way.
+   */
+  void finish() {
+    for (int i = 1; i < size; i++) {
+      final Client client = clients[i];
+      final float t = entries[i];
+      int j = i - 1;
+      while (j >= 0 && entries[j] > t) {
+        clients[j + 1] = clients[j];
+        entries[j + 1] = entries[j];
+        j--;
+      }
+      clients[j + 1] = client;
+      entries[j + 1] = t;
+    }
+  }
+}
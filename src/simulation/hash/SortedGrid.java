@@ -0,0 +1,248 @@
+package simulation.hash;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Grid that is rebuilt from every client at once with a counting sort. Cells
+ * are hashed into a fixed number of buckets, so the clients of a bucket are
+ * contiguous in {@code sortedIndex}. Once built the grid is only read, so any
+ * number of threads can query it without locking.
+ */
+final class SortedGrid {
+
+  private static final int MIN_BUCKETS = 1 << 10;
+
+  private Client[] clients = new Client[0];
+  private long[] cellKey = new long[0];
+  private long[] sortedKey = new long[0];
+  private float[] sortedX = new float[0];
+  private float[] sortedY = new float[0];
+  private int[] sortedIndex = new int[0];
+  private int[] cellStart = new int[MIN_BUCKETS];
+  private int[] cellCount = new int[MIN_BUCKETS];
+  private int size;
+  private int mask = MIN_BUCKETS - 1;
+  private float cellSize = 1;
+
+  private static long key(int cx, int cy) {
+    return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+
+  private static int bucket(long key, int mask) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * Replaces the contents of the grid with {@code all}
+   * @param all the clients to put in the grid
+   * @param cellSize the width and height of a cell
+   */
+  void rebuild(Collection<? extends Client> all, float cellSize) {
+    this.cellSize = cellSize;
+
+    size = all.size();
+    if (clients.length < size) clients = new Client[size + (size >> 1)];
+    clients = all.toArray(clients);
+
+    if (cellKey.length < clients.length) {
+      cellKey = new long[clients.length];
+      sortedKey = new long[clients.length];
+      sortedX = new float[clients.length];
+      sortedY = new float[clients.length];
+      sortedIndex = new int[clients.length];
+    }
+
+    int buckets = MIN_BUCKETS;
+    while (buckets < size) buckets <<= 1;
+    if (cellCount.length != buckets) {
+      cellStart = new int[buckets];
+      cellCount = new int[buckets];
+    } else Arrays.fill(cellCount, 0);
+    mask = buckets - 1;
+
+    for (int i = 0; i < size; i++) {
+      final long key = key(
+        (int) Math.floor(clients[i].getX() / cellSize),
+        (int) Math.floor(clients[i].getY() / cellSize)
+      );
+      cellKey[i] = key;
+      cellCount[bucket(key, mask)]++;
+    }
+
+    int start = 0;
+    for (int b = 0; b < buckets; b++) {
+      cellStart[b] = start;
+      start += cellCount[b];
+    }
+
+    // cellStart is used as the insertion cursor, then shifted back
+    for (int i = 0; i < size; i++) {
+      sortedIndex[cellStart[bucket(cellKey[i], mask)]++] = i;
+    }
+    for (int b = 0; b < buckets; b++) cellStart[b] -= cellCount[b];
+
+    // Keys and positions are copied in sorted order so a cell is scanned
+    // from contiguous memory
+    for (int j = 0; j < size; j++) {
+      final int i = sortedIndex[j];
+      sortedKey[j] = cellKey[i];
+      sortedX[j] = clients[i].getX();
+      sortedY[j] = clients[i].getY();
+    }
+  }
+
+  /**
+   * @return the number of clients in the grid
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param consumer the consumer to pass every client in the grid to
+   */
+  void forEach(ClientConsumer consumer) {
+    for (int i = 0; i < size; i++) consumer.accept(clients[i]);
+  }
+
+  /**
+   * Calls {@code consumer} for every client in a block of cells
+   * @param startX the first cell column
+   * @param startY the first cell row
+   * @param endX the last cell column
+   * @param endY the last cell row
+   * @param consumer the consumer to pass each client to
+   * @return the number of clients visited
+   */
+  int forEachIn(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    ClientConsumer consumer
+  ) {
+    return forEachWithin(
+      startX,
+      startY,
+      endX,
+      endY,
+      0,
+      0,
+      Float.POSITIVE_INFINITY,
+      consumer
+    );
+  }
+
+  /**
+   * Calls {@code consumer} for the clients in a block of cells whose
+   * position at the last rebuild is within a distance of a point
+   * @param startX the first cell column
+   * @param startY the first cell row
+   * @param endX the last cell column
+   * @param endY the last cell row
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param radiusSq the squared distance from the point to search
+   * @param consumer the consumer to pass each client to
+   * @return the number of clients tested
+   */
+  int forEachWithin(
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    float x,
+    float y,
+    float radiusSq,
+    ClientConsumer consumer
+  ) {
+    int visited = 0;
+
+    // A block bigger than the grid is cheaper to answer from every client
+    final long area = ((long) endX - startX + 1) * ((long) endY - startY + 1);
+    if (area > size) {
+      for (int j = 0; j < size; j++) {
+        final int cx = (int) (sortedKey[j] >> 32);
+        final int cy = (int) sortedKey[j];
+        if (cx < startX || cx > endX || cy < startY || cy > endY) continue;
+
+        visited++;
+        if (within(j, x, y, radiusSq)) {
+          consumer.accept(clients[sortedIndex[j]]);
+        }
+      }
+      return visited;
+    }
+
+    for (int cx = startX; cx <= endX; cx++) {
+      for (int cy = startY; cy <= endY; cy++) {
+        final long key = key(cx, cy);
+        final int b = bucket(key, mask);
+        final int end = cellStart[b] + cellCount[b];
+        for (int j = cellStart[b]; j < end; j++) {
+          if (sortedKey[j] != key) continue;
+
+          visited++;
+          if (within(j, x, y, radiusSq)) {
+            consumer.accept(clients[sortedIndex[j]]);
+          }
+        }
+      }
+    }
+    return visited;
+  }
+
+  private boolean within(int j, float x, float y, float radiusSq) {
+    final float dx = sortedX[j] - x;
+    final float dy = sortedY[j] - y;
+    return dx * dx + dy * dy <= radiusSq;
+  }
+
+  /**
+   * Calls {@code consumer} once for every pair of clients within
+   * {@code cutoff} of each other. Each client is paired with the rest of its
+   * own cell and with the forward half of the cells around it, so a pair is
+   * only ever seen from one side.
+   * @param cutoff the maximum distance between the centres of a pair
+   * @param consumer the consumer to pass each pair to
+   */
+  void forEachPair(float cutoff, PairConsumer consumer) {
+    final int r = (int) Math.ceil(cutoff / cellSize);
+    final float cutoffSq = cutoff * cutoff;
+
+    for (int j = 0; j < size; j++) {
+      final int i = sortedIndex[j];
+      final long key = cellKey[i];
+      final Client a = clients[i];
+
+      final int b = bucket(key, mask);
+      final int end = cellStart[b] + cellCount[b];
+      for (int k = j + 1; k < end; k++) {
+        final int o = sortedIndex[k];
+        if (cellKey[o] == key) pair(a, clients[o], cutoffSq, consumer);
+      }
+
+      final int cx = (int) (key >> 32);
+      final int cy = (int) key;
+      for (int dy = 0; dy <= r; dy++) {
+        for (int dx = dy == 0 ? 1 : -r; dx <= r; dx++) {
+          final long other = key(cx + dx, cy + dy);
+          final int ob = bucket(other, mask);
+          final int oEnd = cellStart[ob] + cellCount[ob];
+          for (int k = cellStart[ob]; k < oEnd; k++) {
+            final int o = sortedIndex[k];
+            if (cellKey[o] == other) pair(a, clients[o], cutoffSq, consumer);
+          }
+        }
+      }
+    }
+  }
+
+  static void pair(Client a, Client b, float cutoffSq, PairConsumer consumer) {
+    final float dx = a.getX() - b.getX();
+    final float dy = a.getY() - b.getY();
+    if (dx * dx + dy * dy <= cutoffSq) consumer.accept(a, b);
+  }
+}
@@ -1,115 +1,920 @@
 package simulation.hash;
 
-import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 import simulation.Settings;
 import simulation.util.Vec2;
+import simulation.util.Workers;
 
-public final class SpatialHash implements Serializable {
+/**
+ * Uniform grid of cells, optionally in several levels of doubling cell size
+ */
+public final class SpatialHash implements SpatialIndex {
+
+  /**
+   * How the hash keeps track of its clients
+   */
+  public enum Mode {
+    /**
+     * Clients are added and removed one at a time
+     */
+    INCREMENTAL,
+    /**
+     * The whole grid is rebuilt from every client once per tick with
+     * {@link SpatialHash#rebuild(Collection) rebuild}, adding and removing
+     * single clients does nothing
+     */
+    REBUILD,
+    /**
+     * Like {@link #INCREMENTAL INCREMENTAL}, but the cells inside the world
+     * given to {@link SpatialHash#resize(short, short) resize} are kept in a
+     * flat array instead of being hashed
+     */
+    DENSE,
+  }
+
+  /**
+   * Staged moves on one level that touch one stripe of cell rows, each with
+   * the stamp the home had when it was staged and the key of the cell
+   */
+  private static final class Bucket {
+
+    private Home[] homes = new Home[16];
+    private int[] stamps = new int[16];
+    private long[] keys = new long[16];
+    private int size;
+
+    private void add(Home home, long key) {
+      if (size == homes.length) {
+        homes = Arrays.copyOf(homes, size * 2);
+        stamps = Arrays.copyOf(stamps, size * 2);
+        keys = Arrays.copyOf(keys, size * 2);
+      }
+      homes[size] = home;
+      stamps[size] = home.stamp;
+      keys[size++] = key;
+    }
+
+    /**
+     * Makes room for at least {@code capacity} moves
+     * @param capacity the number of moves to make room for
+     */
+    private void reserve(int capacity) {
+      if (homes.length >= capacity) return;
+
+      homes = Arrays.copyOf(homes, capacity);
+      stamps = Arrays.copyOf(stamps, capacity);
+      keys = Arrays.copyOf(keys, capacity);
+    }
+
+    private void clear() {
+      Arrays.fill(homes, 0, size, null);
+      size = 0;
+    }
+  }
+
+  /**
+   * Clients staged by one thread that have not been merged into the grid
+   * yet. The moves are sorted into buckets by level and stripe as they are
+   * staged, so each merge task only goes through its own.
+   */
+  private static final class Staging {
+
+    /** Clients to take out of a cell, by the stripe of the old cell */
+    private final Bucket[] unlinks;
+    /** Clients to add to a cell, by the stripe of the new cell */
+    private final Bucket[] links;
+    private boolean empty = true;
+
+    private Staging(int tasks) {
+      unlinks = new Bucket[tasks];
+      links = new Bucket[tasks];
+      for (int i = 0; i < tasks; i++) {
+        unlinks[i] = new Bucket();
+        links[i] = new Bucket();
+      }
+    }
+
+    private void clear() {
+      if (empty) return;
+
+      for (Bucket b : unlinks) b.clear();
+      for (Bucket b : links) b.clear();
+      empty = true;
+    }
+  }
 
   private static final long serialVersionUID = 7642507362804L;
 
-  private final transient ExecutorService pool = Executors.newFixedThreadPool(
-    16
+  private static final int THREADS = 16;
+
+  /**
+   * A query should cover at most this many cells either side of its own
+   */
+  private static final int TARGET_CELL_RADIUS = 2;
+
+  /**
+   * The most rings of cells a nearest search covers on one level before
+   * moving up to the next
+   */
+  private static final int MAX_RINGS = 8;
+
+  private final transient Workers workers = new Workers(
+    THREADS - 1,
+    "spatial-hash"
   );
+  private final transient Workers.Range unlink = this::unlinkStaged;
+  private final transient Workers.Range link = this::linkStaged;
+  private transient volatile Staging[] staging = new Staging[0];
+  private final transient ThreadLocal<Staging> localStaging =
+    ThreadLocal.withInitial(this::newStaging);
+  private final int stripes;
+
+  // The search forEachPair is running, kept in fields so visiting a cell
+  // does not need a new lambda
+  private final transient Consumer<CellMap.Cell> pairCell = this::pairCell;
+  private transient CellGrid pairGrid;
+  private transient int pairRange;
+  private transient float pairCutoffSq;
+  private transient PairConsumer pairConsumer;
+  private transient Client[] pairHome = new Client[16];
 
-  private final ConcurrentMap<String, Set<Client>> grid;
-  private long preCleanTime;
+  private final Mode mode;
+  private final float[] cellSizes;
+  private final CellGrid[] grids;
+  private final transient SortedGrid[] sorted;
+  private final transient CellSizeTuner tuner;
+
+  /**
+   * Where each client is on every level, so it can be found there even after
+   * it has moved. Clients with an {@link Client#getId() id} have theirs kept
+   * by id, and a home stays there once its client is removed, for the next
+   * client with that id. A recycled particle comes back with its id, so it
+   * is added again without allocating.
+   */
+  private volatile Home[] byId = new Home[0];
+  private final Map<Client, Home> homes = new ConcurrentHashMap<>();
+  private volatile int count;
+  private short width;
+  private short height;
 
   public SpatialHash() {
-    grid = new ConcurrentHashMap<>();
-    preCleanTime = System.currentTimeMillis();
+    this(Mode.INCREMENTAL);
+  }
+
+  public SpatialHash(Mode mode) {
+    this.mode = mode;
+
+    final int levels = Math.max(
+      1,
+      (int) Settings.get(Settings.Constants.HASH_LEVELS)
+    );
+    cellSizes = new float[levels];
+    stripes = Math.max(1, THREADS / levels);
+    setCellSizes(Settings.get(Settings.Constants.CELL_SIZE));
+    tuner = new CellSizeTuner(levels, TARGET_CELL_RADIUS);
+
+    if (mode == Mode.REBUILD) {
+      grids = null;
+      sorted = new SortedGrid[levels];
+      for (int i = 0; i < levels; i++) sorted[i] = new SortedGrid();
+    } else {
+      grids = new CellGrid[levels];
+      sorted = null;
+      for (int i = 0; i < levels; i++) grids[i] = newGrid(i);
+    }
+  }
+
+  /**
+   * @param radius the query radius
+   * @return the lowest level where the query covers at most
+   * {@link #TARGET_CELL_RADIUS} cells either side, or the top level
+   */
+  private int level(float radius) {
+    int level = 0;
+    while (
+      level < cellSizes.length - 1 &&
+      radius > cellSizes[level] * TARGET_CELL_RADIUS
+    ) level++;
+    return level;
+  }
+
+  private void setCellSizes(float base) {
+    for (int i = 0; i < cellSizes.length; i++) cellSizes[i] = base * (1 << i);
+  }
+
+  /**
+   * @return the cell size of the lowest level, which is tuned to the queries
+   * while the hash is used
+   */
+  public float getCellSize() {
+    return cellSizes[0];
+  }
+
+  private CellGrid newGrid(int level) {
+    return mode == Mode.DENSE
+      ? new DenseGrid(width, height, cellSizes[level])
+      : new CellMap();
+  }
+
+  /**
+   * Sets the size of the world. In {@link Mode#DENSE DENSE} mode the cell
+   * arrays are rebuilt to cover it, so this must not run at the same time as
+   * any other use of the hash.
+   * @param width the width of the world
+   * @param height the height of the world
+   */
+  @Override
+  public void resize(short width, short height) {
+    if (width == this.width && height == this.height) return;
+
+    this.width = width;
+    this.height = height;
+    if (mode == Mode.DENSE) regrid();
+  }
+
+  /**
+   * @return the mode
+   */
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Replaces the contents of the grid with {@code clients}. Only has an effect
+   * in {@link Mode#REBUILD REBUILD} mode, and must not run at the same time as
+   * a query.
+   * @param clients every client that should be in the grid
+   */
+  @Override
+  public void rebuild(Collection<? extends Client> clients) {
+    if (mode != Mode.REBUILD) return;
+
+    final float base = tuner.tune(cellSizes[0]);
+    if (base != cellSizes[0]) setCellSizes(base);
+
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i].rebuild(clients, cellSizes[i]);
+    }
   }
 
-  public synchronized void newClient(Client client) {
-    getSet(client).forEach(s -> s.add(client));
+  /**
+   * Adds a client to its cells straight away. Unlike staging, this changes
+   * the cells, so it must not run at the same time as
+   * {@link #update(Client) update} or {@link #stage(Client) stage}.
+   * @param client the client to add
+   */
+  @Override
+  public void insert(Client client) {
+    if (mode == Mode.REBUILD) return;
+
+    Home home = home(client);
+    if (home == null) home = newHome(client); else unlink(home);
+
+    home.stamp++;
+    for (int i = 0; i < grids.length; i++) link(i, home);
   }
 
-  public void removeClient(Client client) {
-    getSet(client).forEach(s -> s.remove(client));
-    cleanGrid();
+  /**
+   * Queues a client to be added, or moved if it is in the hash already, by
+   * the next {@link #flushStaged() flushStaged}, without changing any cell.
+   * On the levels where the client is still in the cell it was in, the
+   * position the cell holds for it is refreshed in place instead. Safe to
+   * call from any thread, but not for the same client at once.
+   * @param client the client to add or move
+   */
+  @Override
+  public void stage(Client client) {
+    if (mode == Mode.REBUILD) return;
+
+    Home home = home(client);
+    if (home == null) home = newHome(client);
+
+    final float x = client.getX();
+    final float y = client.getY();
+    Staging buffer = null;
+    for (int i = 0; i < grids.length; i++) {
+      final CellMap.Cell cell = home.cells[i];
+      final long key = key(i, x, y);
+      if (cell != null && key == home.keys[i]) {
+        cell.move(home.slots[i], client);
+        continue;
+      }
+
+      // Anything staged for the client before is out of date now
+      if (buffer == null) {
+        home.stamp++;
+        buffer = localStaging.get();
+        buffer.empty = false;
+      }
+      if (cell != null) buffer.unlinks[task(i, home.keys[i])].add(home, 0);
+      buffer.links[task(i, key)].add(home, key);
+    }
   }
 
-  public Set<Client> findNearParallel(Vec2 client, short radius) {
-    if (client == null || radius == 0) return new HashSet<>(0);
+  /**
+   * @return the merge task that owns a cell on a level
+   */
+  private int task(int level, long key) {
+    return level * stripes + Math.floorMod((int) key, stripes);
+  }
 
-    final Set<Future<Set<Client>>> futures = new HashSet<>(0);
+  /**
+   * Merges every staged client into the grid in parallel. Each task owns one
+   * level and a stripe of cell rows and only goes through the moves staged
+   * for them, so no two workers write to the same cell and no work is
+   * repeated. Also drops empty cells and applies any new cell size, so it
+   * must not run at the same time as any other use of the hash.
+   */
+  @Override
+  public void flushStaged() {
+    if (mode == Mode.REBUILD) return;
 
-    final float cellSize = Settings.get(Settings.Constants.CELL_SIZE);
-    final float cellX = client.x() / cellSize;
-    final float cellY = client.y() / cellSize;
-    final short cellRadius = (short) Math.ceil(radius / cellSize);
+    final float base = tuner.tune(cellSizes[0]);
+    if (base != cellSizes[0]) {
+      setCellSizes(base);
+      // Places every client, staged or not
+      regrid();
+      return;
+    }
+    for (CellGrid grid : grids) grid.reclaim();
 
-    final int startX = (int) Math.floor(cellX) - cellRadius;
-    final int startY = (int) Math.floor(cellY) - cellRadius;
-    final int endX = (int) Math.ceil(cellX) + cellRadius;
-    final int endY = (int) Math.ceil(cellY) + cellRadius;
+    final Staging[] buffers = staging;
+    boolean empty = true;
+    for (Staging buffer : buffers) if (!buffer.empty) empty = false;
+    if (empty) return;
 
-    final Set<Client> defaultReturn = new HashSet<>(0);
+    // Every staged client leaves its old cells before any joins a new one,
+    // since the two can be in different stripes
+    workers.forEach(grids.length * stripes, 1, unlink);
+    workers.forEach(grids.length * stripes, 1, link);
+    for (Staging buffer : buffers) buffer.clear();
+    reserve(buffers);
+  }
 
-    for (int cx = startX; cx <= endX; cx++) {
-      for (int cy = startY; cy <= endY; cy++) {
-        final String key = cx + "," + cy;
-        futures.add(pool.submit(() -> grid.getOrDefault(key, defaultReturn)));
+  /**
+   * Gives every thread's bucket for a task the most room any of them has
+   * needed. Which thread stages the most changes from tick to tick, so
+   * otherwise each would grow its buckets in turn.
+   */
+  private static void reserve(Staging[] buffers) {
+    final int tasks = buffers[0].links.length;
+    for (int task = 0; task < tasks; task++) {
+      int unlinks = 0;
+      int links = 0;
+      for (Staging buffer : buffers) {
+        unlinks = Math.max(unlinks, buffer.unlinks[task].homes.length);
+        links = Math.max(links, buffer.links[task].homes.length);
+      }
+      for (Staging buffer : buffers) {
+        buffer.unlinks[task].reserve(unlinks);
+        buffer.links[task].reserve(links);
       }
     }
+  }
 
-    final Set<Client> nearClients = new HashSet<>(0);
-    for (Future<Set<Client>> future : futures) {
-      try {
-        nearClients.addAll(future.get());
-      } catch (ExecutionException e) {
-        System.err.println("ExecutionException: " + e.getCause());
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+  private synchronized Staging newStaging() {
+    final Staging s = new Staging(cellSizes.length * stripes);
+    final Staging[] buffers = Arrays.copyOf(staging, staging.length + 1);
+    buffers[buffers.length - 1] = s;
+    staging = buffers;
+    return s;
+  }
+
+  /**
+   * Takes the staged clients out of the cells they have left, for the
+   * tasks in a range
+   */
+  private void unlinkStaged(int from, int to) {
+    final Staging[] buffers = staging;
+    for (int task = from; task < to; task++) {
+      final int level = task / stripes;
+      for (Staging buffer : buffers) {
+        final Bucket b = buffer.unlinks[task];
+        for (int j = 0; j < b.size; j++) {
+          final Home home = b.homes[j];
+          if (home.stamp == b.stamps[j]) grids[level].remove(home, level);
+        }
       }
     }
-    nearClients.removeIf(client::isSamePos);
+  }
 
-    return nearClients;
+  /**
+   * Adds the staged clients to the cells they have moved to, for the tasks
+   * in a range
+   */
+  private void linkStaged(int from, int to) {
+    final Staging[] buffers = staging;
+    for (int task = from; task < to; task++) {
+      final int level = task / stripes;
+      for (Staging buffer : buffers) {
+        final Bucket b = buffer.links[task];
+        for (int j = 0; j < b.size; j++) {
+          final Home home = b.homes[j];
+          if (home.stamp == b.stamps[j]) link(level, home, b.keys[j]);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the key of the cell holding a point on a level
+   */
+  private long key(int level, float x, float y) {
+    final float cellSize = cellSizes[level];
+    return CellMap.key(
+      (int) Math.floor(x / cellSize),
+      (int) Math.floor(y / cellSize)
+    );
+  }
+
+  /**
+   * Adds a client to the cell containing its centre on one level
+   */
+  private void link(int level, Home home) {
+    final Client c = home.client;
+    link(level, home, key(level, c.getX(), c.getY()));
+  }
+
+  private void link(int level, Home home, long key) {
+    home.keys[level] = key;
+    grids[level].add((int) (key >> 32), (int) key, home, level);
+  }
+
+  private void unlink(Home home) {
+    for (int i = 0; i < grids.length; i++) {
+      if (home.cells[i] != null) grids[i].remove(home, i);
+    }
+  }
+
+  /**
+   * Takes a client out of its cells straight away, so like
+   * {@link #insert(Client) insert} it must not run at the same time as
+   * {@link #update(Client) update} or {@link #stage(Client) stage}
+   * @param client the client to remove
+   */
+  @Override
+  public void remove(Client client) {
+    if (mode == Mode.REBUILD) return;
+
+    final Home home = home(client);
+    if (home == null) return;
+
+    home.stamp++;
+    unlink(home);
+    removeHome(home);
+  }
+
+  /**
+   * @return the home of a client, or {@code null} if it is not in the hash
+   */
+  private Home home(Client client) {
+    final int id = client.getId();
+    if (id < 0) return homes.get(client);
+
+    final Home[] h = byId;
+    final Home home = id < h.length ? h[id] : null;
+    return home != null && home.client == client ? home : null;
+  }
+
+  private synchronized Home newHome(Client client) {
+    count++;
+
+    final int id = client.getId();
+    if (id < 0) {
+      final Home home = new Home(client, cellSizes.length);
+      homes.put(client, home);
+      return home;
+    }
+
+    if (id >= byId.length) {
+      byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+    }
+    Home home = byId[id];
+    if (home == null) {
+      home = new Home(client, cellSizes.length);
+      byId[id] = home;
+    } else home.client = client;
+    return home;
+  }
+
+  private synchronized void removeHome(Home home) {
+    count--;
+    if (home.client.getId() < 0) homes.remove(home.client); else {
+      home.client = null;
+    }
+  }
+
+  /**
+   * Same as {@link #stage(Client) stage}: a client that is still in its cell
+   * has the position the cell holds refreshed in place, which takes no lock
+   * and no search, and a client that has left its cell is only moved by the
+   * next {@link #flushStaged() flushStaged}
+   * @param client the client that moved
+   */
+  @Override
+  public void update(Client client) {
+    stage(client);
   }
 
-  public Set<Client> findNearParallel(Client client, short radius) {
-    return findNearParallel(new Vec2(client.getX(), client.getY()), radius);
+  /**
+   * Moves every client to a new set of levels built from the current cell
+   * sizes and world size, including the staged clients
+   */
+  private void regrid() {
+    for (int i = 0; i < grids.length; i++) grids[i] = newGrid(i);
+
+    for (Home home : byId) if (home != null && home.client != null) place(home);
+    for (Home home : homes.values()) place(home);
+    for (Staging buffer : staging) buffer.clear();
+  }
+
+  private void place(Home home) {
+    Arrays.fill(home.cells, null);
+    for (int i = 0; i < grids.length; i++) link(i, home);
   }
 
   public Set<Client> findNear(Vec2 client, short radius) {
     if (client == null || radius == 0) return new HashSet<>();
 
-    final float cellSize = Settings.get(Settings.Constants.CELL_SIZE);
-    final float cellX = client.x() / cellSize;
-    final float cellY = client.y() / cellSize;
-    final short cellRadius = (short) Math.ceil(radius / cellSize);
+    final Set<Client> nearClients = new HashSet<>();
+    forEachNear(client.x(), client.y(), radius, nearClients::add);
+    removeSame(client, nearClients);
+
+    return nearClients;
+  }
+
+  /**
+   * Calls {@code consumer} once for every client within {@code radius} of a
+   * point, without building a collection. Clients at the point itself are
+   * included. Distances are tested against the positions the cells hold, so
+   * clients out of range are skipped without being touched.
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param radius the distance from the point to search
+   * @param consumer the consumer to pass each client to
+   */
+  @Override
+  public void forEachNear(
+    float x,
+    float y,
+    short radius,
+    ClientConsumer consumer
+  ) {
+    if (radius == 0) return;
 
-    final int startX = (int) Math.floor(cellX) - cellRadius;
-    final int startY = (int) Math.floor(cellY) - cellRadius;
-    final int endX = (int) Math.ceil(cellX) + cellRadius;
-    final int endY = (int) Math.ceil(cellY) + cellRadius;
+    final int level = level(radius);
+    final float cellSize = cellSizes[level];
 
-    final Set<Client> nearClients = new HashSet<>();
-    final Set<Client> defaultReturn = new HashSet<>(0);
+    // Every client is in the one cell holding its centre, so the stencil is
+    // exactly the cells the query square overlaps
+    final int startX = (int) Math.floor((x - radius) / cellSize);
+    final int startY = (int) Math.floor((y - radius) / cellSize);
+    final int endX = (int) Math.floor((x + radius) / cellSize);
+    final int endY = (int) Math.floor((y + radius) / cellSize);
+    final int cells = (endX - startX + 1) * (endY - startY + 1);
 
-    for (int cx = startX; cx <= endX; cx++) {
-      for (int cy = startY; cy <= endY; cy++) {
-        final String key = cx + "," + cy;
-        nearClients.addAll(grid.getOrDefault(key, defaultReturn));
+    final float radiusSq = (float) radius * radius;
+    final int visited = mode == Mode.REBUILD
+      ? sorted[level].forEachWithin(
+        startX,
+        startY,
+        endX,
+        endY,
+        x,
+        y,
+        radiusSq,
+        consumer
+      )
+      : grids[level].forEachWithin(
+        startX,
+        startY,
+        endX,
+        endY,
+        x,
+        y,
+        radiusSq,
+        consumer
+      );
+    tuner.record(radius, cells, cellSize, visited);
+  }
+
+  /**
+   * Calls {@code consumer} for every client in a block of cells on one level
+   * @return the number of clients visited
+   */
+  private int forEachIn(
+    int level,
+    int startX,
+    int startY,
+    int endX,
+    int endY,
+    ClientConsumer consumer
+  ) {
+    return mode == Mode.REBUILD
+      ? sorted[level].forEachIn(startX, startY, endX, endY, consumer)
+      : grids[level].forEachIn(startX, startY, endX, endY, consumer);
+  }
+
+  /**
+   * Calls {@code consumer} for the clients in the cells the box overlaps,
+   * keeping only those whose centre is inside it
+   */
+  @Override
+  public void forEachInBox(
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    ClientConsumer consumer
+  ) {
+    final int level = level(Math.max(maxX - minX, maxY - minY) / 2);
+    final float s = cellSizes[level];
+    forEachIn(
+      level,
+      (int) Math.floor(minX / s),
+      (int) Math.floor(minY / s),
+      (int) Math.floor(maxX / s),
+      (int) Math.floor(maxY / s),
+      c -> {
+        if (inBox(c, minX, minY, maxX, maxY)) consumer.accept(c);
       }
+    );
+  }
+
+  /**
+   * Cells wholly inside the box are counted without looking at their
+   * clients, only the ring of cells the edges of the box cross is checked
+   * client by client
+   */
+  @Override
+  public int countInBox(float minX, float minY, float maxX, float maxY) {
+    final int level = level(Math.max(maxX - minX, maxY - minY) / 2);
+    final float s = cellSizes[level];
+
+    final int startX = (int) Math.floor(minX / s);
+    final int startY = (int) Math.floor(minY / s);
+    final int endX = (int) Math.floor(maxX / s);
+    final int endY = (int) Math.floor(maxY / s);
+
+    // Cells whose every point is inside the box
+    final int innerStartX = (int) Math.ceil(minX / s);
+    final int innerStartY = (int) Math.ceil(minY / s);
+    final int innerEndX = endX - 1;
+    final int innerEndY = endY - 1;
+
+    final int[] count = { 0 };
+    final ClientConsumer edge = c -> {
+      if (inBox(c, minX, minY, maxX, maxY)) count[0]++;
+    };
+
+    if (innerStartX > innerEndX || innerStartY > innerEndY) {
+      forEachIn(level, startX, startY, endX, endY, edge);
+      return count[0];
     }
-    removeSame(client, nearClients);
 
-    return nearClients;
+    forEachIn(level, startX, startY, endX, innerStartY - 1, edge);
+    forEachIn(level, startX, innerEndY + 1, endX, endY, edge);
+    forEachIn(level, startX, innerStartY, innerStartX - 1, innerEndY, edge);
+    forEachIn(level, innerEndX + 1, innerStartY, endX, innerEndY, edge);
+
+    return (
+      count[0] + count(level, innerStartX, innerStartY, innerEndX, innerEndY)
+    );
+  }
+
+  /**
+   * @return the number of clients in a block of cells on one level
+   */
+  private int count(int level, int startX, int startY, int endX, int endY) {
+    return mode == Mode.REBUILD
+      ? sorted[level].forEachIn(startX, startY, endX, endY, c -> {})
+      : grids[level].count(startX, startY, endX, endY);
+  }
+
+  private static boolean inBox(
+    Client c,
+    float minX,
+    float minY,
+    float maxX,
+    float maxY
+  ) {
+    final float x = c.getX();
+    final float y = c.getY();
+    return x >= minX && x <= maxX && y >= minY && y <= maxY;
+  }
+
+  /**
+   * Walks the cells the segment passes through with a DDA, stepping to
+   * whichever cell edge the segment crosses next. Clients are stored by
+   * their centre, so a band of cells {@code radius} wide either side is
+   * searched. The walk only ever moves forwards along each axis, so each
+   * step adds one new row or column of the band and no cell is searched
+   * twice.
+   */
+  @Override
+  public void traceSegment(
+    float x0,
+    float y0,
+    float x1,
+    float y1,
+    short radius,
+    SegmentHits out
+  ) {
+    out.reset(x0, y0, x1, y1);
+
+    final int level = level(radius);
+    final float s = cellSizes[level];
+    final int band = (int) Math.ceil(radius / s);
+
+    int cx = (int) Math.floor(x0 / s);
+    int cy = (int) Math.floor(y0 / s);
+    final int endX = (int) Math.floor(x1 / s);
+    final int endY = (int) Math.floor(y1 / s);
+    final int stepX = x1 < x0 ? -1 : 1;
+    final int stepY = y1 < y0 ? -1 : 1;
+
+    // Fractions of the segment between cell edges, and to the first edges
+    final float dx = Math.abs(x1 - x0);
+    final float dy = Math.abs(y1 - y0);
+    final float deltaX = s / dx;
+    final float deltaY = s / dy;
+    float nextX = (stepX > 0 ? (cx + 1) * s - x0 : x0 - cx * s) / dx;
+    float nextY = (stepY > 0 ? (cy + 1) * s - y0 : y0 - cy * s) / dy;
+
+    forEachIn(level, cx - band, cy - band, cx + band, cy + band, out);
+    while (cx != endX || cy != endY) {
+      if (cy == endY || (cx != endX && nextX < nextY)) {
+        cx += stepX;
+        nextX += deltaX;
+        final int column = cx + stepX * band;
+        forEachIn(level, column, cy - band, column, cy + band, out);
+      } else {
+        cy += stepY;
+        nextY += deltaY;
+        final int row = cy + stepY * band;
+        forEachIn(level, cx - band, row, cx + band, row, out);
+      }
+    }
+    out.finish();
+  }
+
+  /**
+   * Searches outwards from the cell holding the point one ring of cells at a
+   * time, stopping once {@code k} clients are found and everything beyond
+   * the rings searched is further than the furthest of them. If that takes
+   * more than {@link #MAX_RINGS} rings the search starts over on the next
+   * level up, and past the top level every client is checked.
+   */
+  @Override
+  public void nearest(float x, float y, int k, Client ignore, Nearest out) {
+    out.reset(x, y, k, ignore);
+    if (k <= 0) return;
+
+    final int total = mode == Mode.REBUILD ? sorted[0].size() : count;
+    for (int level = 0; level < cellSizes.length; level++) {
+      if (ringSearch(level, total, out)) {
+        out.finish();
+        return;
+      }
+      out.reset(x, y, k, ignore);
+    }
+
+    if (mode == Mode.REBUILD) sorted[0].forEach(out); else {
+      for (Home home : byId) if (home != null && home.client != null) {
+        out.accept(home.client);
+      }
+      for (Client c : homes.keySet()) out.accept(c);
+    }
+    out.finish();
+  }
+
+  /**
+   * @return whether the search finished within {@link #MAX_RINGS} rings
+   */
+  private boolean ringSearch(int level, int total, Nearest out) {
+    final float s = cellSizes[level];
+    final int cx = (int) Math.floor(out.x / s);
+    final int cy = (int) Math.floor(out.y / s);
+
+    for (int r = 0; r <= MAX_RINGS; r++) {
+      if (r == 0) visitCell(level, cx, cy, out); else {
+        for (int dx = -r; dx <= r; dx++) {
+          visitCell(level, cx + dx, cy - r, out);
+          visitCell(level, cx + dx, cy + r, out);
+        }
+        for (int dy = 1 - r; dy < r; dy++) {
+          visitCell(level, cx - r, cy + dy, out);
+          visitCell(level, cx + r, cy + dy, out);
+        }
+      }
+      if (out.seen() >= total) return true;
+
+      // Anything not searched yet is at least this far from the point
+      final float edge = Math.min(
+        Math.min(out.x - (cx - r) * s, (cx + r + 1) * s - out.x),
+        Math.min(out.y - (cy - r) * s, (cy + r + 1) * s - out.y)
+      );
+      if (out.isFull() && out.worstSq() <= edge * edge) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Offers every client in a cell to {@code out}, skipping the cell when it
+   * is further away than everything already found
+   */
+  private void visitCell(int level, int cx, int cy, Nearest out) {
+    final float s = cellSizes[level];
+    if (out.isFull()) {
+      final float dx = Math.max(
+        0,
+        Math.max(cx * s - out.x, out.x - (cx + 1) * s)
+      );
+      final float dy = Math.max(
+        0,
+        Math.max(cy * s - out.y, out.y - (cy + 1) * s)
+      );
+      if (dx * dx + dy * dy > out.worstSq()) return;
+    }
+
+    forEachIn(level, cx, cy, cx, cy, out);
+  }
+
+  /**
+   * Calls {@code consumer} once for every pair of clients whose centres are
+   * within {@code cutoff} of each other. Pairs are found with a half-shell
+   * stencil on the level whose cells are at least {@code cutoff} wide, so
+   * each pair is only visited from one side. Runs on the calling
+   * thread and must not overlap with {@link #rebuild(Collection) rebuild}.
+   * @param cutoff the maximum distance between the centres of a pair
+   * @param consumer the consumer to pass each pair to
+   */
+  @Override
+  public void forEachPair(float cutoff, PairConsumer consumer) {
+    if (mode == Mode.REBUILD) {
+      sorted[pairLevel(cutoff)].forEachPair(cutoff, consumer);
+      return;
+    }
+
+    final int level = pairLevel(cutoff);
+    pairGrid = grids[level];
+    pairRange = (int) Math.ceil(cutoff / cellSizes[level]);
+    pairCutoffSq = cutoff * cutoff;
+    pairConsumer = consumer;
+
+    pairGrid.forEachCell(pairCell);
+    pairGrid = null;
+    pairConsumer = null;
+  }
+
+  private void pairCell(CellMap.Cell cell) {
+    final int n = cell.size();
+    if (n == 0) return;
+
+    final CellGrid grid = pairGrid;
+    final int r = pairRange;
+    final float cutoffSq = pairCutoffSq;
+    final PairConsumer consumer = pairConsumer;
+    final int cx = cell.x();
+    final int cy = cell.y();
+
+    // The consumer may remove clients, so the cell is copied first
+    if (pairHome.length < n) pairHome = new Client[n * 2];
+    final Client[] home = pairHome;
+    for (int i = 0; i < n; i++) home[i] = cell.client(i);
+
+    for (int i = 0; i < n; i++) {
+      for (int j = i + 1; j < n; j++) {
+        SortedGrid.pair(home[i], home[j], cutoffSq, consumer);
+      }
+    }
+
+    for (int dy = 0; dy <= r; dy++) {
+      for (int dx = dy == 0 ? 1 : -r; dx <= r; dx++) {
+        final CellMap.Cell other = grid.get(cx + dx, cy + dy);
+        if (other == null) continue;
+
+        for (int j = 0; j < other.size(); j++) {
+          final Client b = other.client(j);
+          for (int i = 0; i < n; i++) {
+            SortedGrid.pair(home[i], b, cutoffSq, consumer);
+          }
+        }
+      }
+    }
+  }
+
+  private int pairLevel(float cutoff) {
+    int level = 0;
+    while (level < cellSizes.length - 1 && cutoff > cellSizes[level]) level++;
+    return level;
   }
 
   /**
@@ -129,39 +934,8 @@ public final class SpatialHash implements Serializable {
     return false;
   }
 
+  @Override
   public Set<Client> findNear(Client client, short radius) {
     return findNear(new Vec2(client.getX(), client.getY()), radius);
   }
-
-  private String[] getHashKey(Client client) {
-    final float cellSize = Settings.get(Settings.Constants.CELL_SIZE);
-    final float x = client.getX() / cellSize;
-    final float y = client.getY() / cellSize;
-    return new String[] {
-      ((int) Math.floor(x)) + "," + ((int) Math.floor(y)),
-      ((int) Math.ceil(x)) + "," + ((int) Math.floor(y)),
-      ((int) Math.floor(x)) + "," + ((int) Math.ceil(y)),
-      ((int) Math.ceil(x)) + "," + ((int) Math.ceil(y)),
-    };
-  }
-
-  private Stream<Set<Client>> getSet(Client client) {
-    return Arrays
-      .stream(getHashKey(client))
-      .map(key -> grid.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
-      );
-  }
-
-  private synchronized void cleanGrid() {
-    if (System.currentTimeMillis() - preCleanTime < 1_000) return;
-
-    for (
-      Iterator<Entry<String, Set<Client>>> iter = grid.entrySet().iterator();
-      iter.hasNext();
-    ) {
-      if (iter.next().getValue().isEmpty()) iter.remove();
-    }
-
-    preCleanTime = System.currentTimeMillis();
-  }
 }
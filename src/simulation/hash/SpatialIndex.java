@@ -0,0 +1,173 @@
+package simulation.hash;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the clients near a point and the pairs of clients near each other.
+ * Queries may run from any number of threads at once, but not at the same
+ * time as {@link #flushStaged() flushStaged}, {@link #rebuild(Collection)
+ * rebuild} or {@link #resize(short, short) resize}.
+ */
+public interface SpatialIndex extends Serializable {
+  /**
+   * The implementations that can be picked in the config
+   */
+  public enum Type {
+    /**
+     * {@link SpatialHash}, a uniform grid
+     */
+    HASH,
+    /**
+     * {@link LooseQuadtree}, a tree that splits where clients are dense
+     */
+    QUADTREE,
+  }
+
+  /**
+   * Adds a client at its current position
+   * @param client the client to add
+   */
+  public void insert(Client client);
+
+  /**
+   * Removes a client from wherever it was added, even if it has moved since
+   * @param client the client to remove
+   */
+  public void remove(Client client);
+
+  /**
+   * Moves a client to its current position, doing nothing if it is still in
+   * the same place in the index. Adds the client if it was not there.
+   * @param client the client that moved
+   */
+  public void update(Client client);
+
+  /**
+   * Queues a client to be added by the next {@link #flushStaged()
+   * flushStaged}. Safe to call from any thread.
+   * @param client the client to add
+   */
+  public void stage(Client client);
+
+  /**
+   * Adds every staged client and does any upkeep the index needs. Should be
+   * called once per tick, even when nothing was staged.
+   */
+  public void flushStaged();
+
+  /**
+   * Replaces the contents of the index with {@code clients}, for indexes that
+   * are rebuilt every tick instead of being kept up to date
+   * @param clients every client that should be in the index
+   */
+  public default void rebuild(Collection<? extends Client> clients) {
+    // Only used by some indexes
+  }
+
+  /**
+   * Sets the size of the world
+   * @param width the width of the world
+   * @param height the height of the world
+   */
+  public default void resize(short width, short height) {
+    // Only used by some indexes
+  }
+
+  /**
+   * Calls {@code consumer} for every client whose centre is within
+   * {@code radius} of a point, as of when the client was last added or
+   * updated
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param radius the distance from the point to search
+   * @param consumer the consumer to pass each client to
+   */
+  public void forEachNear(
+    float x,
+    float y,
+    short radius,
+    ClientConsumer consumer
+  );
+
+  /**
+   * Calls {@code consumer} for every client whose centre is inside a box,
+   * edges included
+   * @param minX the left of the box
+   * @param minY the top of the box
+   * @param maxX the right of the box
+   * @param maxY the bottom of the box
+   * @param consumer the consumer to pass each client to
+   */
+  public void forEachInBox(
+    float minX,
+    float minY,
+    float maxX,
+    float maxY,
+    ClientConsumer consumer
+  );
+
+  /**
+   * @param minX the left of the box
+   * @param minY the top of the box
+   * @param maxX the right of the box
+   * @param maxY the bottom of the box
+   * @return the number of clients whose centre is inside a box, edges
+   * included
+   */
+  public int countInBox(float minX, float minY, float maxX, float maxY);
+
+  /**
+   * Calls {@code consumer} once for every pair of clients whose centres are
+   * within {@code cutoff} of each other
+   * @param cutoff the maximum distance between the centres of a pair
+   * @param consumer the consumer to pass each pair to
+   */
+  public void forEachPair(float cutoff, PairConsumer consumer);
+
+  /**
+   * Finds the {@code k} clients closest to a point, by the distance between
+   * centres, sorted from closest to furthest. Fewer are found only when the
+   * index holds fewer.
+   * @param x the x of the point
+   * @param y the y of the point
+   * @param k the number of clients to find
+   * @param ignore a client to leave out, such as the one searching, or
+   * {@code null}
+   * @param out the buffer to write the results to, which is cleared first
+   */
+  public void nearest(float x, float y, int k, Client ignore, Nearest out);
+
+  /**
+   * Finds the clients whose {@link Client#getRadius() radius} overlaps a
+   * segment, in the order the segment reaches them
+   * @param x0 the x of the start of the segment
+   * @param y0 the y of the start of the segment
+   * @param x1 the x of the end of the segment
+   * @param y1 the y of the end of the segment
+   * @param radius the largest radius of any client that should be found
+   * @param out the buffer to write the results to, which is cleared first
+   */
+  public void traceSegment(
+    float x0,
+    float y0,
+    float x1,
+    float y1,
+    short radius,
+    SegmentHits out
+  );
+
+  /**
+   * @param client the client to search around
+   * @param radius the distance from the client to search
+   * @return the clients around {@code client}, not including itself
+   */
+  public default Set<Client> findNear(Client client, short radius) {
+    final Set<Client> near = new HashSet<>();
+    forEachNear(client.getX(), client.getY(), radius, near::add);
+    near.remove(client);
+    return near;
+  }
+}
@@ -5,14 +5,12 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.GridLayout;
 import java.awt.Window;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 class SidePanel extends JPanel {
 
@@ -44,7 +42,16 @@ class SidePanel extends JPanel {
     button.setBackground(Color.LIGHT_GRAY);
     add(button, BorderLayout.WEST);
 
-    final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+    // Resizes once the layout has settled, on the event thread so it never
+    // runs during a tick of the simulation
+    final Timer resize = new Timer(
+      50,
+      e -> {
+        final Window frame = SwingUtilities.getWindowAncestor(this);
+        if (frame != null) ((SimulationFrame) frame).resizeSimulation();
+      }
+    );
+    resize.setRepeats(false);
 
     button.addActionListener(e -> {
       Window frame = SwingUtilities.getWindowAncestor(this);
@@ -58,11 +65,7 @@ class SidePanel extends JPanel {
         button.setText(side == Side.RIGHT ? ">" : "<");
       }
 
-      executorService.schedule(
-        ((SimulationFrame) frame)::resizeSimulation,
-        50,
-        TimeUnit.MILLISECONDS
-      );
+      resize.restart();
     });
   }
 }
@@ -276,6 +276,20 @@ class SimulationPanel extends JPanel {
       10,
       fontHeight * 3
     );
+
+    final float cellSize = simulation.getCellSize();
+    if (cellSize >= 0) {
+      g.drawString(
+        String.format("Cell Size: %.1f", cellSize),
+        10,
+        fontHeight * 4
+      );
+    }
+
+    final long rebuilds = simulation.getNeighbourRebuilds();
+    if (rebuilds >= 0) {
+      g.drawString("Neighbour Rebuilds: " + rebuilds, 10, fontHeight * 5);
+    }
   }
 
   private void drawOverlay(Graphics g) {
@@ -0,0 +1,57 @@
+package simulation.util;
+
+import java.util.Arrays;
+
+/**
+ * Sorts {@code long} keys by their high 32 bits, read as unsigned, with a
+ * radix sort that keeps keys with the same high bits in their current
+ * order. Keys built as {@code code << 32 | index} from non-negative codes
+ * and ascending indices come out in the order
+ * {@link Arrays#sort(long[]) sort} would give, but the sorter reuses its
+ * own buffers, so sorting allocates nothing once they have grown to fit.
+ */
+public final class KeySorter {
+
+  private static final int BITS = 8;
+  private static final int PASSES = 32 / BITS;
+
+  private final int[] counts = new int[1 << BITS];
+  private long[] scratch = new long[0];
+
+  /**
+   * @param keys the keys to sort
+   * @param n the number of keys, from the start of {@code keys}
+   */
+  public void sort(long[] keys, int n) {
+    if (scratch.length < n) scratch = new long[keys.length];
+
+    long[] from = keys;
+    long[] to = scratch;
+    for (int pass = 0; pass < PASSES; pass++) {
+      final int shift = 32 + pass * BITS;
+
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < n; i++) counts[digit(from[i], shift)]++;
+
+      int start = 0;
+      for (int d = 0; d < counts.length; d++) {
+        final int count = counts[d];
+        counts[d] = start;
+        start += count;
+      }
+
+      for (int i = 0; i < n; i++) {
+        to[counts[digit(from[i], shift)]++] = from[i];
+      }
+
+      final long[] swap = from;
+      from = to;
+      to = swap;
+    }
+    // An even number of passes leaves the result back in keys
+  }
+
+  private static int digit(long key, int shift) {
+    return (int) (key >>> shift) & ((1 << BITS) - 1);
+  }
+}
@@ -30,6 +30,24 @@ public final class MathUtils {
     return RANDOM.nextFloat(bound + Float.MIN_VALUE);
   }
 
+  /**
+   * @param x the x, only the low 16 bits are used
+   * @param y the y, only the low 16 bits are used
+   * @return the Z-order (Morton) code of the point, with the bits of
+   * {@code x} and {@code y} interleaved
+   */
+  public static int morton(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+
+  private static int spread(int v) {
+    v &= 0xFFFF;
+    v = (v | (v << 8)) & 0x00FF00FF;
+    v = (v | (v << 4)) & 0x0F0F0F0F;
+    v = (v | (v << 2)) & 0x33333333;
+    return (v | (v << 1)) & 0x55555555;
+  }
+
   private MathUtils() {
     throw new IllegalStateException("Utility class");
   }
@@ -0,0 +1,156 @@
+package simulation.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Consumer;
+import simulation.hash.Client;
+
+/**
+ * Iteration order for a set of clients that follows a Z-order (Morton) curve
+ * over their cells, so clients that are close in space are also close in
+ * the order. The order is re-sorted every {@code interval} refreshes, or
+ * sooner when too much of it is out of order.
+ */
+public final class MortonOrder<T extends Client> {
+
+  private final float cellSize;
+  private final int interval;
+  private final float threshold;
+  // Kept between refreshes so adding does not allocate once it has grown
+  private Client[] added = new Client[16];
+  private int addedCount;
+
+  private Client[] order = new Client[0];
+  private Client[] sorted = new Client[0];
+  private long[] keys = new long[0];
+  private final KeySorter sorter = new KeySorter();
+  private int size;
+  private int sinceSort;
+  private long sorts;
+
+  /**
+   * @param cellSize the size of the cells the curve runs through
+   * @param interval the number of refreshes between sorts
+   * @param threshold the fraction of clients that may be out of order
+   * before sorting early
+   */
+  public MortonOrder(float cellSize, int interval, float threshold) {
+    this.cellSize = cellSize;
+    this.interval = interval;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Queues a client to be appended on the next refresh, safe to call from
+   * any thread
+   * @param client the new client
+   */
+  public synchronized void add(T client) {
+    if (addedCount == added.length) {
+      added = Arrays.copyOf(added, addedCount * 2);
+    }
+    added[addedCount++] = client;
+  }
+
+  /**
+   * @return the number of clients in the order
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of times the order has been sorted
+   */
+  public long getSorts() {
+    return sorts;
+  }
+
+  /**
+   * @param i the position in the order
+   * @return the client at that position
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int i) {
+    return (T) order[i];
+  }
+
+  @SuppressWarnings("unchecked")
+  public void forEach(Consumer<? super T> action) {
+    for (int i = 0; i < size; i++) action.accept((T) order[i]);
+  }
+
+  /**
+   * Drops the clients that are no longer in {@code live}, appends the new
+   * ones, and sorts the order if it is due or too disordered. Must not run at
+   * the same time as {@link #forEach(Consumer) forEach}.
+   * @param live the clients that should be in the order, which should answer
+   * {@link Collection#contains(Object) contains} quickly
+   * @param allowSort whether the order may be sorted on this refresh
+   */
+  public void refresh(Collection<? extends T> live, boolean allowSort) {
+    int next = 0;
+    int disorder = 0;
+    int previous = 0;
+
+    for (int i = 0; i < size; i++) {
+      final Client c = order[i];
+      if (!live.contains(c)) continue;
+
+      final int code = code(c);
+      if (next > 0 && code < previous) disorder++;
+      previous = code;
+      order[next++] = c;
+    }
+
+    synchronized (this) {
+      for (int k = 0; k < addedCount; k++) {
+        final Client c = added[k];
+        added[k] = null;
+        if (!live.contains(c)) continue;
+        if (next == order.length) order =
+          Arrays.copyOf(order, Math.max(16, next + (next >> 1)));
+
+        final int code = code(c);
+        if (next > 0 && code < previous) disorder++;
+        previous = code;
+        order[next++] = c;
+      }
+      addedCount = 0;
+    }
+
+    if (next < size) Arrays.fill(order, next, size, null);
+    size = next;
+
+    if (!allowSort) return;
+    if (++sinceSort >= interval || disorder > threshold * size) sort();
+  }
+
+  private void sort() {
+    if (keys.length < size || sorted.length < size) {
+      keys = new long[order.length];
+      sorted = new Client[order.length];
+    }
+
+    for (int i = 0; i < size; i++) {
+      keys[i] = ((code(order[i]) & 0xFFFFFFFFL) << 32) | i;
+    }
+    sorter.sort(keys, size);
+    for (int i = 0; i < size; i++) sorted[i] = order[(int) keys[i]];
+
+    final Client[] swap = order;
+    order = sorted;
+    sorted = swap;
+    Arrays.fill(sorted, 0, size, null);
+
+    sinceSort = 0;
+    sorts++;
+  }
+
+  private int code(Client c) {
+    return MathUtils.morton(
+      (int) MathUtils.clamp(c.getX() / cellSize, 0, 0xFFFF),
+      (int) MathUtils.clamp(c.getY() / cellSize, 0, 0xFFFF)
+    );
+  }
+}
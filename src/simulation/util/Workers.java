@@ -0,0 +1,98 @@
+package simulation.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed set of worker threads that split a range of indices between them.
+ * Unlike an executor, handing out a range allocates nothing: the workers
+ * claim chunks from a shared counter and are woken and waited on with
+ * {@link LockSupport}, so a tick can be parallel and allocation-free. The
+ * calling thread works through the range as well.
+ */
+public final class Workers {
+
+  /**
+   * Work on a range of indices
+   */
+  @FunctionalInterface
+  public interface Range {
+    /**
+     * @param from the first index
+     * @param to one past the last index
+     */
+    void run(int from, int to);
+  }
+
+  private final Thread[] threads;
+  private final AtomicInteger next = new AtomicInteger();
+  private final AtomicInteger running = new AtomicInteger();
+
+  private volatile Range task;
+  private volatile int size;
+  private volatile int chunk;
+  private volatile int generation;
+  private volatile Thread caller;
+
+  /**
+   * @param count the number of worker threads, not counting the caller
+   * @param name the prefix of the thread names
+   */
+  public Workers(int count, String name) {
+    threads = new Thread[count];
+    for (int i = 0; i < count; i++) {
+      threads[i] = new Thread(this::work, name + "-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Runs {@code task} over every index below {@code size} in chunks, and
+   * returns once all of them are done. Must not be called from a task.
+   * @param size the number of indices
+   * @param chunk the most indices given to a worker at once
+   * @param task the work to run on each chunk
+   */
+  public synchronized void forEach(int size, int chunk, Range task) {
+    if (size <= 0) return;
+
+    this.task = task;
+    this.size = size;
+    this.chunk = Math.max(1, chunk);
+    next.set(0);
+    running.set(threads.length);
+    caller = Thread.currentThread();
+    generation++;
+    for (Thread t : threads) LockSupport.unpark(t);
+
+    runChunks();
+    while (running.get() > 0) LockSupport.park(this);
+    this.task = null;
+  }
+
+  private void work() {
+    int seen = 0;
+    while (true) {
+      while (generation == seen) LockSupport.park(this);
+      seen = generation;
+
+      runChunks();
+      if (running.decrementAndGet() == 0) LockSupport.unpark(caller);
+    }
+  }
+
+  private void runChunks() {
+    final Range range = task;
+    final int n = size;
+    final int step = chunk;
+
+    for (int from; (from = next.getAndAdd(step)) < n;) {
+      try {
+        range.run(from, Math.min(n, from + step));
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -8,6 +8,7 @@ import java.util.Random;
 import java.util.stream.Collectors;
 import simulation.body.object.Environment;
 import simulation.body.particle.Particle;
+import simulation.body.particle.ParticleStore;
 
 public final class ClassConstructor {
 
@@ -20,21 +21,33 @@ public final class ClassConstructor {
   private static final int NUM_PARTICLE_TYPES = PARTICLE_CLASSES.size();
 
   public static Particle build(
+    ParticleStore store,
     ParticleParams params,
     Class<? extends Particle> type
   ) {
     try {
-      return (Particle) (
-        type != null
-          ? type
-          : PARTICLE_CLASSES.get(RANDOM.nextInt(NUM_PARTICLE_TYPES))
-      ).getConstructor(ParticleParams.class)
-        .newInstance(params);
+      return particleType(type)
+        .getConstructor(ParticleStore.class, ParticleParams.class)
+        .newInstance(store, params);
     } catch (Exception e) {
       throw new IllegalStateException("Error creating particle");
     }
   }
 
+  /**
+   * @param type a particle type, or {@code null} for any
+   * @return {@code type}, or a random particle type if it is {@code null}
+   */
+  @SuppressWarnings("unchecked")
+  public static Class<? extends Particle> particleType(
+    Class<? extends Particle> type
+  ) {
+    if (type != null) return type;
+    return (Class<? extends Particle>) PARTICLE_CLASSES.get(
+      RANDOM.nextInt(NUM_PARTICLE_TYPES)
+    );
+  }
+
   public static Environment build(ObjectParams params) {
     try {
       return params
@@ -3,6 +3,10 @@ package simulation.util.gravity;
 import simulation.util.Vec2;
 
 public interface Gravity {
+  public float getX();
+
+  public float getY();
+
   public Vec2 getPosition();
 
   public short getStrength();
@@ -2,7 +2,6 @@ package simulation.util.gravity;
 
 import simulation.Settings;
 import simulation.body.particle.Particle;
-import simulation.util.Vec2;
 
 public final class GravityUtils {
 
@@ -12,28 +11,21 @@ public final class GravityUtils {
   }
 
   public static void attract(Gravity g, Particle p) {
-    Vec2 av = calculate(Mode.ATTRACT, g, p);
-
-    short immortality = p.getImmortality();
-
-    if (immortality > 0) {
-      p.getVelocity().add(av.div(immortality));
-    } else p.getVelocity().add(av);
+    apply(Mode.ATTRACT, g, p);
   }
 
   public static void repel(Gravity g, Particle p) {
-    Vec2 av = calculate(Mode.REPEL, g, p);
-
-    short immortality = p.getImmortality();
-
-    if (immortality > 0) {
-      p.getVelocity().sub(av.div(immortality));
-    } else p.getVelocity().sub(av);
+    apply(Mode.REPEL, g, p);
   }
 
-  private static Vec2 calculate(Mode mode, Gravity g1, Particle g2) {
-    Vec2 dv = new Vec2(g1.getPosition()).sub(g2.getPosition());
-    float dSq = dv.getLengthSq();
+  /**
+   * Works in scalars rather than vectors, since it runs for every nearby pair
+   * of gravity particles each tick
+   */
+  private static void apply(Mode mode, Gravity g1, Particle g2) {
+    final float dx = g1.getX() - g2.getX();
+    final float dy = g1.getY() - g2.getY();
+    final float dSq = dx * dx + dy * dy;
 
     float strengthMultiplier = mode == Mode.ATTRACT
       ? Settings.get(Settings.ATTRACTION_STRENGTH)
@@ -54,7 +46,19 @@ public final class GravityUtils {
       mode == Mode.ATTRACT ? 100 : 300
     );
 
-    return dv.mul(acceleration * Settings.get(Settings.DT));
+    final float scale = acceleration * Settings.get(Settings.DT);
+    float ax = dx * scale;
+    float ay = dy * scale;
+
+    final short immortality = g2.getImmortality();
+    if (immortality > 0) {
+      ax /= immortality;
+      ay /= immortality;
+    }
+
+    if (mode == Mode.ATTRACT) {
+      g2.addVelocity(ax, ay);
+    } else g2.addVelocity(-ax, -ay);
   }
 
   private GravityUtils() {